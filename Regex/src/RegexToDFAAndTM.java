@@ -1,26 +1,317 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 // --- Part 1: Regex to NFA ---
 
+/**
+ * CharSet is an immutable set of chars stored as sorted, disjoint, non-adjacent
+ * inclusive [lo, hi] ranges, so classes like [a-z] or [^\n] stay a few ints in size.
+ */
+final class CharSet implements Comparable<CharSet> {
+    static final CharSet ANY = new CharSet(new int[] {0, Character.MAX_VALUE});
+    static final CharSet DIGIT = new CharSet(new int[] {'0', '9'});
+    static final CharSet WORD = new CharSet(new int[] {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'});
+    static final CharSet SPACE = new CharSet(new int[] {'\t', '\r', ' ', ' '});
+
+    final int[] ranges;
+
+    private CharSet(int[] ranges) {
+        this.ranges = ranges;
+    }
+
+    static CharSet of(char c) {
+        return new CharSet(new int[] {c, c});
+    }
+
+    static CharSet range(char lo, char hi) {
+        if (lo > hi) throw new IllegalArgumentException("Invalid range: " + lo + "-" + hi);
+        return new CharSet(new int[] {lo, hi});
+    }
+
+    /** Normalizes arbitrary [lo, hi] pairs into sorted, merged ranges. */
+    static CharSet fromRanges(int[] pairs, int length) {
+        long[] packed = new long[length / 2];
+        for (int i = 0; i < packed.length; i++) packed[i] = ((long) pairs[2 * i] << 32) | pairs[2 * i + 1];
+        Arrays.sort(packed);
+        int[] merged = new int[length];
+        int n = 0;
+        for (long p : packed) {
+            int lo = (int) (p >>> 32), hi = (int) p;
+            if (n > 0 && lo <= merged[n - 1] + 1) merged[n - 1] = Math.max(merged[n - 1], hi);
+            else { merged[n++] = lo; merged[n++] = hi; }
+        }
+        return new CharSet(Arrays.copyOf(merged, n));
+    }
+
+    public CharSet union(CharSet other) {
+        int[] pairs = Arrays.copyOf(ranges, ranges.length + other.ranges.length);
+        System.arraycopy(other.ranges, 0, pairs, ranges.length, other.ranges.length);
+        return fromRanges(pairs, pairs.length);
+    }
+
+    public CharSet complement() {
+        int[] result = new int[ranges.length + 2];
+        int n = 0, next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) { result[n++] = next; result[n++] = ranges[i] - 1; }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_VALUE) { result[n++] = next; result[n++] = Character.MAX_VALUE; }
+        return new CharSet(Arrays.copyOf(result, n));
+    }
+
+    public boolean contains(char c) {
+        int lo = 0, hi = ranges.length / 2 - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (c < ranges[2 * mid]) hi = mid - 1;
+            else if (c > ranges[2 * mid + 1]) lo = mid + 1;
+            else return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty() { return ranges.length == 0; }
+
+    @Override
+    public int compareTo(CharSet other) {
+        return Arrays.compare(ranges, other.ranges);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CharSet && Arrays.equals(ranges, ((CharSet) o).ranges);
+    }
+
+    @Override
+    public int hashCode() { return Arrays.hashCode(ranges); }
+
+    /** A single char prints as itself; anything else in bracket notation, e.g. [a-z0]. */
+    @Override
+    public String toString() {
+        return describe(ranges);
+    }
+
+    static String describe(int[] ranges) {
+        if (ranges.length == 2 && ranges[0] == ranges[1]) return String.valueOf((char) ranges[0]);
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < ranges.length; i += 2) {
+            sb.append((char) ranges[i]);
+            if (ranges[i + 1] != ranges[i]) sb.append('-').append((char) ranges[i + 1]);
+        }
+        return sb.append(']').toString();
+    }
+}
+
 /**
  * NFATransition represents a transition in the NFA.
- * 'symbol' is null for an epsilon transition.
+ * 'label' is the set of chars it accepts, or null for an epsilon transition.
  */
 class NFATransition {
     int fromState;
-    Character symbol; // null for epsilon
+    CharSet label; // null for epsilon
     int toState;
 
-    public NFATransition(int fromState, Character symbol, int toState) {
+    public NFATransition(int fromState, char symbol, int toState) {
+        this(fromState, CharSet.of(symbol), toState);
+    }
+
+    public NFATransition(int fromState, CharSet label, int toState) {
         this.fromState = fromState;
-        this.symbol = symbol;
+        this.label = label;
         this.toState = toState;
     }
 
     @Override
     public String toString() {
-        return fromState + " --" + (symbol == null ? "ε" : symbol) + "--> " + toState;
+        return fromState + " --" + (label == null ? "ε" : label) + "--> " + toState;
+    }
+}
+
+/**
+ * CharClassMap partitions the char range into equivalence classes: chars that no
+ * transition label tells apart share a class id. Latin-1 chars are looked up in a direct
+ * table; other chars are found by binary search over the sorted starts of the intervals
+ * that make up the partition.
+ */
+final class CharClassMap {
+    final int classCount;
+    final int[] latin1Classes = new int[256];
+    final char[] intervalStarts; // sorted, intervalStarts[0] == 0
+    final int[] intervalClasses;
+    private final char[] representatives; // lowest char of each class
+
+    CharClassMap(char[] intervalStarts, int[] intervalClasses, int classCount) {
+        this.intervalStarts = intervalStarts;
+        this.intervalClasses = intervalClasses;
+        this.classCount = classCount;
+        for (int i = 0, c = 0; c < 256; c++) {
+            while (i + 1 < intervalStarts.length && intervalStarts[i + 1] <= c) i++;
+            latin1Classes[c] = intervalClasses[i];
+        }
+        this.representatives = new char[classCount];
+        boolean[] seen = new boolean[classCount];
+        for (int i = 0; i < intervalStarts.length; i++) {
+            if (!seen[intervalClasses[i]]) {
+                seen[intervalClasses[i]] = true;
+                representatives[intervalClasses[i]] = intervalStarts[i];
+            }
+        }
+    }
+
+    /**
+     * Builds the coarsest partition that keeps every label whole. Each label is a
+     * sorted array of inclusive [lo, hi] pairs. Class ids are numbered in order of
+     * their lowest char.
+     */
+    static CharClassMap fromLabels(Collection<int[]> labels) {
+        // Split the char range into elementary intervals at every label boundary.
+        int boundaryCount = 1;
+        for (int[] label : labels) boundaryCount += label.length;
+        int[] bounds = new int[boundaryCount];
+        int n = 1; // bounds[0] == 0
+        for (int[] label : labels) {
+            for (int i = 0; i < label.length; i += 2) {
+                bounds[n++] = label[i];
+                if (label[i + 1] < Character.MAX_VALUE) bounds[n++] = label[i + 1] + 1;
+            }
+        }
+        Arrays.sort(bounds, 0, n);
+        int intervals = 0;
+        for (int i = 0; i < n; i++) {
+            if (intervals == 0 || bounds[intervals - 1] != bounds[i]) bounds[intervals++] = bounds[i];
+        }
+
+        // Refine one class at a time: a label splits every class it partially covers.
+        int[] intervalClass = new int[intervals];
+        int[] classSize = new int[intervals + 1];
+        int[] hits = new int[intervals + 1];
+        int[] splitTo = new int[intervals + 1];
+        int[] touched = new int[intervals + 1];
+        classSize[0] = intervals;
+        int classCount = 1;
+        for (int[] label : labels) {
+            int touchedCount = 0;
+            for (int r = 0; r < label.length; r += 2) {
+                for (int i = Arrays.binarySearch(bounds, 0, intervals, label[r]); i < intervals && bounds[i] <= label[r + 1]; i++) {
+                    if (hits[intervalClass[i]]++ == 0) touched[touchedCount++] = intervalClass[i];
+                }
+            }
+            for (int t = 0; t < touchedCount; t++) {
+                int c = touched[t];
+                splitTo[c] = hits[c] == classSize[c] ? c : classCount++;
+                classSize[c] -= hits[c];
+                classSize[splitTo[c]] += hits[c];
+                hits[c] = 0;
+            }
+            for (int r = 0; r < label.length; r += 2) {
+                for (int i = Arrays.binarySearch(bounds, 0, intervals, label[r]); i < intervals && bounds[i] <= label[r + 1]; i++) {
+                    intervalClass[i] = splitTo[intervalClass[i]];
+                }
+            }
+        }
+
+        // Renumber classes by lowest char and merge adjacent intervals of the same class.
+        int[] renumber = new int[classCount];
+        Arrays.fill(renumber, -1);
+        int finalCount = 0;
+        char[] starts = new char[intervals];
+        int[] classes = new int[intervals];
+        int merged = 0;
+        for (int i = 0; i < intervals; i++) {
+            int c = intervalClass[i];
+            if (renumber[c] < 0) renumber[c] = finalCount++;
+            if (merged > 0 && classes[merged - 1] == renumber[c]) continue;
+            starts[merged] = (char) bounds[i];
+            classes[merged++] = renumber[c];
+        }
+        return new CharClassMap(Arrays.copyOf(starts, merged), Arrays.copyOf(classes, merged), finalCount);
+    }
+
+    /** Returns a refinement of this map in which the given char has a class of its own. */
+    CharClassMap withSingleton(char c) {
+        return refinedBy(Collections.singletonList(CharSet.of(c)));
+    }
+
+    /** Returns the coarsest refinement of this map that also keeps every given label whole. */
+    CharClassMap refinedBy(Collection<CharSet> extraLabels) {
+        List<int[]> labels = new ArrayList<>();
+        for (int cls = 0; cls < classCount; cls++) labels.add(rangesOf(cls));
+        for (CharSet label : extraLabels) labels.add(label.ranges);
+        return fromLabels(labels);
+    }
+
+    public int classOf(char c) {
+        if (c < 256) return latin1Classes[c];
+        int i = Arrays.binarySearch(intervalStarts, c);
+        return intervalClasses[i >= 0 ? i : -i - 2];
+    }
+
+    /** The classes a char set covers; the set must be a union of whole classes. */
+    public int[] classesOf(CharSet set) {
+        BitSet classes = new BitSet(classCount);
+        for (int r = 0; r < set.ranges.length; r += 2) {
+            int i = Arrays.binarySearch(intervalStarts, (char) set.ranges[r]);
+            if (i < 0) i = -i - 2;
+            for (; i < intervalStarts.length && intervalStarts[i] <= set.ranges[r + 1]; i++) classes.set(intervalClasses[i]);
+        }
+        return classes.stream().toArray();
+    }
+
+    public char representative(int cls) {
+        return representatives[cls];
+    }
+
+    /** The chars of a class as sorted inclusive [lo, hi] pairs. */
+    public int[] rangesOf(int cls) {
+        int[] ranges = new int[0];
+        int n = 0;
+        for (int i = 0; i < intervalStarts.length; i++) {
+            if (intervalClasses[i] != cls) continue;
+            int hi = i + 1 < intervalStarts.length ? intervalStarts[i + 1] - 1 : Character.MAX_VALUE;
+            ranges = Arrays.copyOf(ranges, n + 2);
+            ranges[n++] = intervalStarts[i];
+            ranges[n++] = hi;
+        }
+        return ranges;
+    }
+
+    /** Describes a class the way CharSet prints, e.g. a or [a-z0]. */
+    public String describe(int cls) {
+        return CharSet.describe(rangesOf(cls));
     }
 }
 
@@ -28,49 +319,108 @@ class NFATransition {
  * NFA represents a Nondeterministic Finite Automaton.
  */
 class NFA {
-    static int nextStateId = 0; // Global counter for unique state IDs
+    private int nextStateId = 0; // State ids are allocated per NFA, so builds never share a counter
 
     int startState;
     int acceptState;
     Set<Integer> allStates;
     List<NFATransition> transitions;
-    Set<Character> alphabet;
+    Set<CharSet> alphabet; // distinct transition labels
+    int[] acceptPatterns;  // multi-pattern NFAs only: pattern id accepted at each state, or -1
+
+    // Adjacency index in CSR form, built once by buildIndex().
+    // Epsilon successors of state s: epsilonTargets[epsilonOffsets[s] .. epsilonOffsets[s + 1]).
+    // Successors of state s on symbol class c: symbolTargets[symbolOffsets[k] .. symbolOffsets[k + 1]),
+    // where k = s * classMap.classCount + c.
+    int stateCount;
+    CharClassMap classMap;
+    int[] epsilonOffsets;
+    int[] epsilonTargets;
+    int[] symbolOffsets;
+    int[] symbolTargets;
+
+    /** An empty NFA for builders that add states first and set start and accept states last. */
+    NFA() {
+        this.startState = -1;
+        this.acceptState = -1;
+        this.allStates = new HashSet<>();
+        this.transitions = new ArrayList<>();
+        this.alphabet = new TreeSet<>();
+    }
 
     public NFA(int startState, int acceptState) {
         this.startState = startState;
         this.acceptState = acceptState;
         this.allStates = new HashSet<>(Arrays.asList(startState, acceptState));
         this.transitions = new ArrayList<>();
-        this.alphabet = new HashSet<>();
+        this.alphabet = new TreeSet<>();
+        this.nextStateId = Math.max(startState, acceptState) + 1;
     }
 
-    public static void resetStateIdCounter() {
-        nextStateId = 0;
-    }
-
-    public static int getNewStateId() {
-        return nextStateId++;
+    /** Allocates a fresh state id in this NFA. */
+    public int getNewStateId() {
+        int id = nextStateId++;
+        allStates.add(id);
+        return id;
     }
 
     public void addTransition(NFATransition transition) {
         this.transitions.add(transition);
         this.allStates.add(transition.fromState);
         this.allStates.add(transition.toState);
-        if (transition.symbol != null) {
-            this.alphabet.add(transition.symbol);
+        this.nextStateId = Math.max(nextStateId, Math.max(transition.fromState, transition.toState) + 1);
+        if (transition.label != null) {
+            this.alphabet.add(transition.label);
         }
     }
 
-    public void addAllTransitions(Collection<NFATransition> transitions) {
-        transitions.forEach(this::addTransition);
-    }
-
     public void addAllStates(Collection<Integer> states) {
         this.allStates.addAll(states);
+        for (int state : states) nextStateId = Math.max(nextStateId, state + 1);
+    }
+
+    /**
+     * Builds the adjacency index from the transition list so that successor
+     * lookups cost O(out-degree) instead of a scan over every transition.
+     * Must be called again if transitions are added afterwards.
+     */
+    public void buildIndex() {
+        int maxState = Math.max(startState, acceptState);
+        for (int s : allStates) maxState = Math.max(maxState, s);
+        stateCount = maxState + 1;
+
+        // Overlapping range labels are split into disjoint classes here, so subset
+        // construction only ever sees class ids.
+        List<int[]> labels = new ArrayList<>();
+        for (CharSet label : alphabet) labels.add(label.ranges);
+        classMap = CharClassMap.fromLabels(labels);
+        Map<CharSet, int[]> classesOfLabel = new HashMap<>();
+        for (CharSet label : alphabet) classesOfLabel.put(label, classMap.classesOf(label));
+        int symbolCount = classMap.classCount;
+
+        // Counting pass, then prefix sums, then a fill pass (counting sort by key).
+        epsilonOffsets = new int[stateCount + 1];
+        symbolOffsets = new int[stateCount * symbolCount + 1];
+        for (NFATransition t : transitions) {
+            if (t.label == null) epsilonOffsets[t.fromState + 1]++;
+            else for (int c : classesOfLabel.get(t.label)) symbolOffsets[t.fromState * symbolCount + c + 1]++;
+        }
+        for (int i = 1; i < epsilonOffsets.length; i++) epsilonOffsets[i] += epsilonOffsets[i - 1];
+        for (int i = 1; i < symbolOffsets.length; i++) symbolOffsets[i] += symbolOffsets[i - 1];
+
+        epsilonTargets = new int[epsilonOffsets[stateCount]];
+        symbolTargets = new int[symbolOffsets[symbolOffsets.length - 1]];
+        int[] epsilonFill = Arrays.copyOf(epsilonOffsets, stateCount);
+        int[] symbolFill = Arrays.copyOf(symbolOffsets, symbolOffsets.length - 1);
+        for (NFATransition t : transitions) {
+            if (t.label == null) epsilonTargets[epsilonFill[t.fromState]++] = t.toState;
+            else for (int c : classesOfLabel.get(t.label)) symbolTargets[symbolFill[t.fromState * symbolCount + c]++] = t.toState;
+        }
     }
 
-    public void addAllAlphabetSymbols(Collection<Character> symbols) {
-        symbols.stream().filter(Objects::nonNull).forEach(this.alphabet::add);
+    /** Builds the index unless it exists; safe to call from several threads. */
+    public synchronized void ensureIndexed() {
+        if (epsilonOffsets == null) buildIndex();
     }
 
     @Override
@@ -90,456 +440,3251 @@ class NFA {
 }
 
 /**
- * NFABuilder constructs an NFA from a simplified regex.
- * Supports: concatenation (ab), alternation (a|b), Kleene star (a*),
- * one or more (a+), zero or one (a?).
- * Precedence: *, +, ? (highest), then concatenation, then | (lowest). No parentheses.
+ * RegexSink receives a parsed regex bottom-up, one construction per syntax node, so
+ * the same parser can drive different automaton builders. Each argument is the value
+ * the sink returned for a subexpression and is passed in exactly once.
  */
-class NFABuilder {
+interface RegexSink<T> {
+    T empty();
 
-    private static NFA createLiteralNFA(char literal) {
-        int start = NFA.getNewStateId();
-        int end = NFA.getNewStateId();
-        NFA nfa = new NFA(start, end);
-        nfa.addTransition(new NFATransition(start, literal, end));
-        nfa.alphabet.add(literal);
-        return nfa;
+    T literal(CharSet label);
+
+    T star(T inner);
+
+    T plus(T inner);
+
+    T optional(T inner);
+
+    T concatenate(T first, T second);
+
+    T alternate(T first, T second);
+}
+
+/**
+ * RegexParser is a recursive-descent parser that reports the regex's structure to a sink.
+ * Supports: concatenation (ab), alternation (a|b), grouping ((ab)*), Kleene star (a*),
+ * one or more (a+), zero or one (a?), any char except newline (.),
+ * bracketed classes ([a-z0-9], [^\n]), shorthand classes (\d \w \s \D \W \S)
+ * and escaped literals (\*, \(, \|, \n, \t, \r).
+ * Precedence: *, +, ? (highest), then concatenation, then | (lowest).
+ * Each class is reported as a single literal labelled with its char set.
+ */
+final class RegexParser<T> {
+    private static final CharSet NOT_NEWLINE = CharSet.of('\n').complement();
+
+    private final String regex;
+    private final RegexSink<T> sink;
+    private int pos;
+
+    RegexParser(String regex, RegexSink<T> sink) {
+        this.regex = regex == null ? "" : regex;
+        this.sink = sink;
     }
 
-    private static NFA createStarNFA(NFA nfaFragment) {
-        int newStart = NFA.getNewStateId();
-        int newAccept = NFA.getNewStateId();
-        NFA starNFA = new NFA(newStart, newAccept);
-        starNFA.addAllStates(nfaFragment.allStates);
-        starNFA.addAllTransitions(nfaFragment.transitions);
-        starNFA.addAllAlphabetSymbols(nfaFragment.alphabet);
-        starNFA.addTransition(new NFATransition(newStart, null, nfaFragment.startState));
-        starNFA.addTransition(new NFATransition(nfaFragment.acceptState, null, newAccept));
-        starNFA.addTransition(new NFATransition(nfaFragment.acceptState, null, nfaFragment.startState));
-        starNFA.addTransition(new NFATransition(newStart, null, newAccept));
-        return starNFA;
-    }
-
-    private static NFA createPlusNFA(NFA nfaFragment) {
-        int newStart = NFA.getNewStateId();
-        int newAccept = NFA.getNewStateId();
-        NFA plusNFA = new NFA(newStart, newAccept);
-        plusNFA.addAllStates(nfaFragment.allStates);
-        plusNFA.addAllTransitions(nfaFragment.transitions);
-        plusNFA.addAllAlphabetSymbols(nfaFragment.alphabet);
-        plusNFA.addTransition(new NFATransition(newStart, null, nfaFragment.startState));
-        plusNFA.addTransition(new NFATransition(nfaFragment.acceptState, null, newAccept));
-        plusNFA.addTransition(new NFATransition(nfaFragment.acceptState, null, nfaFragment.startState));
-        return plusNFA;
-    }
-
-    private static NFA createOptionalNFA(NFA nfaFragment) {
-        int newStart = NFA.getNewStateId();
-        int newAccept = NFA.getNewStateId();
-        NFA optionalNFA = new NFA(newStart, newAccept);
-        optionalNFA.addAllStates(nfaFragment.allStates);
-        optionalNFA.addAllTransitions(nfaFragment.transitions);
-        optionalNFA.addAllAlphabetSymbols(nfaFragment.alphabet);
-        optionalNFA.addTransition(new NFATransition(newStart, null, nfaFragment.startState));
-        optionalNFA.addTransition(new NFATransition(nfaFragment.acceptState, null, newAccept));
-        optionalNFA.addTransition(new NFATransition(newStart, null, newAccept));
-        return optionalNFA;
-    }
-
-    private static NFA concatenateNFA(NFA nfa1, NFA nfa2) {
-        NFA concatNFA = new NFA(nfa1.startState, nfa2.acceptState);
-        concatNFA.addAllStates(nfa1.allStates);
-        concatNFA.addAllStates(nfa2.allStates);
-        concatNFA.addAllTransitions(nfa1.transitions);
-        concatNFA.addAllTransitions(nfa2.transitions);
-        concatNFA.addAllAlphabetSymbols(nfa1.alphabet);
-        concatNFA.addAllAlphabetSymbols(nfa2.alphabet);
-        concatNFA.addTransition(new NFATransition(nfa1.acceptState, null, nfa2.startState));
-        return concatNFA;
-    }
-
-    private static NFA alternateNFA(NFA nfa1, NFA nfa2) {
-        int newStart = NFA.getNewStateId();
-        int newAccept = NFA.getNewStateId();
-        NFA altNFA = new NFA(newStart, newAccept);
-        altNFA.addAllStates(nfa1.allStates);
-        altNFA.addAllStates(nfa2.allStates);
-        altNFA.addAllTransitions(nfa1.transitions);
-        altNFA.addAllTransitions(nfa2.transitions);
-        altNFA.addAllAlphabetSymbols(nfa1.alphabet);
-        altNFA.addAllAlphabetSymbols(nfa2.alphabet);
-        altNFA.addTransition(new NFATransition(newStart, null, nfa1.startState));
-        altNFA.addTransition(new NFATransition(newStart, null, nfa2.startState));
-        altNFA.addTransition(new NFATransition(nfa1.acceptState, null, newAccept));
-        altNFA.addTransition(new NFATransition(nfa2.acceptState, null, newAccept));
-        return altNFA;
-    }
-
-    private static NFA parseUnit(String unitStr) {
-        if (unitStr.length() == 1) return createLiteralNFA(unitStr.charAt(0));
-        if (unitStr.length() == 2) {
-            NFA literalNFA = createLiteralNFA(unitStr.charAt(0));
-            switch (unitStr.charAt(1)) {
-                case '*': return createStarNFA(literalNFA);
-                case '+': return createPlusNFA(literalNFA);
-                case '?': return createOptionalNFA(literalNFA);
-                default: throw new IllegalArgumentException("Invalid operator in unit: " + unitStr);
-            }
-        }
-        throw new IllegalArgumentException("Invalid unit: " + unitStr);
-    }
-
-    private static NFA parseConcatenationSequence(String sequenceStr) {
-        if (sequenceStr.isEmpty()) {
-            int s = NFA.getNewStateId();
-            return new NFA(s, s); // Epsilon NFA
-        }
-        List<NFA> unitNFAs = new ArrayList<>();
-        int i = 0;
-        while (i < sequenceStr.length()) {
-            if (i + 1 < sequenceStr.length() && Set.of('*', '+', '?').contains(sequenceStr.charAt(i + 1))) {
-                unitNFAs.add(parseUnit(sequenceStr.substring(i, i + 2)));
-                i += 2;
-            } else {
-                unitNFAs.add(parseUnit(sequenceStr.substring(i, i + 1)));
-                i += 1;
-            }
+    /** Parses the whole regex and returns the sink's value for it. */
+    public T parse() {
+        T whole = parseAlternation();
+        if (pos < regex.length()) {
+            throw error("Unbalanced ')'");
         }
-        if (unitNFAs.isEmpty()) { // Should be unreachable if sequenceStr not empty
-            int s = NFA.getNewStateId(); return new NFA(s,s);
+        return whole;
+    }
+
+    // alternation := concatenation ('|' concatenation)*
+    private T parseAlternation() {
+        T result = parseConcatenation();
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            result = sink.alternate(result, parseConcatenation());
         }
-        NFA resultNFA = unitNFAs.get(0);
-        for (int j = 1; j < unitNFAs.size(); j++) {
-            resultNFA = concatenateNFA(resultNFA, unitNFAs.get(j));
+        return result;
+    }
+
+    // concatenation := repetition*
+    private T parseConcatenation() {
+        T result = null;
+        while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+            T next = parseRepetition();
+            result = result == null ? next : sink.concatenate(result, next);
         }
-        return resultNFA;
+        return result == null ? sink.empty() : result;
     }
 
-    public static NFA buildFromRegex(String regex) {
-        NFA.resetStateIdCounter();
-        if (regex == null || regex.isEmpty()) {
-            int s = NFA.getNewStateId();
-            return new NFA(s, s); // NFA for empty string
-        }
-        String[] alternationParts = regex.split("\\|");
-        List<NFA> alternationNFAs = new ArrayList<>();
-        for (String part : alternationParts) {
-            if (part.isEmpty() && alternationParts.length > 1) {
-                int s = NFA.getNewStateId();
-                alternationNFAs.add(new NFA(s, s)); // Epsilon choice in alternation
-            } else {
-                alternationNFAs.add(parseConcatenationSequence(part));
+    // repetition := atom ('*' | '+' | '?')*
+    private T parseRepetition() {
+        T result = parseAtom();
+        while (pos < regex.length()) {
+            char op = regex.charAt(pos);
+            if (op == '*') result = sink.star(result);
+            else if (op == '+') result = sink.plus(result);
+            else if (op == '?') result = sink.optional(result);
+            else break;
+            pos++;
+        }
+        return result;
+    }
+
+    // atom := '(' alternation ')' | '[' class ']' | '\' escape | '.' | literal
+    private T parseAtom() {
+        char c = regex.charAt(pos);
+        switch (c) {
+            case '(': {
+                pos++;
+                T group = parseAlternation();
+                if (pos >= regex.length() || regex.charAt(pos) != ')') throw error("Missing ')'");
+                pos++;
+                return group;
             }
+            case '*': case '+': case '?':
+                throw error("Nothing to repeat before '" + c + "'");
+            case '[':
+                return sink.literal(parseBracket());
+            case '\\':
+                pos++;
+                return sink.literal(parseEscape());
+            case '.':
+                pos++;
+                return sink.literal(NOT_NEWLINE);
+            default:
+                pos++;
+                return sink.literal(CharSet.of(c));
         }
-        if (alternationNFAs.isEmpty()) { // Should be unreachable
-            int s = NFA.getNewStateId(); return new NFA(s,s);
+    }
+
+    private CharSet parseEscape() {
+        if (pos >= regex.length()) throw error("Dangling escape");
+        char c = regex.charAt(pos++);
+        switch (c) {
+            case 'd': return CharSet.DIGIT;
+            case 'w': return CharSet.WORD;
+            case 's': return CharSet.SPACE;
+            case 'D': return CharSet.DIGIT.complement();
+            case 'W': return CharSet.WORD.complement();
+            case 'S': return CharSet.SPACE.complement();
+            case 'n': return CharSet.of('\n');
+            case 't': return CharSet.of('\t');
+            case 'r': return CharSet.of('\r');
+            default: return CharSet.of(c);
         }
-        NFA finalNFA = alternationNFAs.get(0);
-        for (int i = 1; i < alternationNFAs.size(); i++) {
-            finalNFA = alternateNFA(finalNFA, alternationNFAs.get(i));
+    }
+
+    private CharSet parseBracket() {
+        int open = pos++;
+        boolean negated = pos < regex.length() && regex.charAt(pos) == '^';
+        if (negated) pos++;
+        int[] pairs = new int[8];
+        int n = 0;
+        boolean first = true;
+        while (true) {
+            if (pos >= regex.length()) {
+                pos = open;
+                throw error("Unterminated character class");
+            }
+            char c = regex.charAt(pos);
+            if (c == ']' && !first) break; // a leading ']' is a literal
+            first = false;
+            CharSet item = c == '\\' ? parseEscapeAt() : CharSet.of(regex.charAt(pos++));
+            boolean single = item.ranges.length == 2 && item.ranges[0] == item.ranges[1];
+            if (single && pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                pos++;
+                CharSet hi = regex.charAt(pos) == '\\' ? parseEscapeAt() : CharSet.of(regex.charAt(pos++));
+                if (hi.ranges.length != 2 || hi.ranges[0] != hi.ranges[1]) throw error("Invalid range end");
+                if (hi.ranges[0] < item.ranges[0]) throw error("Invalid range");
+                item = CharSet.range((char) item.ranges[0], (char) hi.ranges[0]);
+            }
+            if (n + item.ranges.length > pairs.length) pairs = Arrays.copyOf(pairs, 2 * (n + item.ranges.length));
+            System.arraycopy(item.ranges, 0, pairs, n, item.ranges.length);
+            n += item.ranges.length;
         }
-        return finalNFA;
+        pos++; // closing ']'
+        CharSet set = CharSet.fromRanges(pairs, n);
+        return negated ? set.complement() : set;
     }
-}
 
-// --- Part 2: NFA to DFA ---
+    private CharSet parseEscapeAt() {
+        pos++; // the backslash
+        return parseEscape();
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " in regex: " + regex);
+    }
+}
 
 /**
- * DFA represents a Deterministic Finite Automaton.
+ * NFABuilder constructs an NFA from a regex using Thompson's construction, driven by
+ * RegexParser. Fragments are emitted straight into one shared NFA, so a regex of length n
+ * is compiled in O(n) time and memory. Each class becomes a single range-labelled transition.
  */
-class DFA {
-    static int nextDfaStateId = 0;
-    int startStateId = -1;
-    Set<Integer> acceptStateIds = new HashSet<>();
-    Map<Integer, Map<Character, Integer>> transitions = new HashMap<>();
-    Set<Character> alphabet;
-    Map<Integer, Set<Integer>> dfaStateToNfaStatesMap = new HashMap<>();
+class NFABuilder implements RegexSink<NFABuilder.Fragment> {
+    /** A partial automaton inside the shared NFA, with one entry and one exit state. */
+    static final class Fragment {
+        final int start;
+        final int accept;
+
+        Fragment(int start, int accept) {
+            this.start = start;
+            this.accept = accept;
+        }
+    }
 
-    public DFA(Set<Character> alphabet) {
-        this.alphabet = alphabet;
+    private final NFA nfa = new NFA();
+
+    private NFABuilder() {
+    }
+
+    /** Thread-safe: all parser and id-allocation state lives in the parser, builder and NFA. */
+    public static NFA buildFromRegex(String regex) {
+        Instrumentation.Probe probe = Instrumentation.startStage(regex);
+        NFABuilder builder = new NFABuilder();
+        Fragment whole = new RegexParser<>(regex, builder).parse();
+        builder.nfa.startState = whole.start;
+        builder.nfa.acceptState = whole.accept;
+        builder.nfa.buildIndex();
+        if (probe != null) probe.finish(PipelineStage.BUILD_NFA, null);
+        return builder.nfa;
+    }
+
+    /**
+     * Builds one NFA for several regexes: a shared start state with an epsilon
+     * transition into each pattern, whose accept state is labelled with the pattern's
+     * index in nfa.acceptPatterns. nfa.acceptState is -1 since there is no single one.
+     */
+    public static NFA buildUnion(List<String> regexes) {
+        NFABuilder builder = new NFABuilder();
+        NFA nfa = builder.nfa;
+        nfa.startState = builder.newState();
+        int[] acceptStates = new int[regexes.size()];
+        for (int i = 0; i < regexes.size(); i++) {
+            Fragment pattern = new RegexParser<>(regexes.get(i), builder).parse();
+            if (pattern.accept == pattern.start) {
+                // An empty pattern's single state may not double as another pattern's entry.
+                int accept = builder.newState();
+                builder.epsilon(pattern.start, accept);
+                pattern = new Fragment(pattern.start, accept);
+            }
+            builder.epsilon(nfa.startState, pattern.start);
+            acceptStates[i] = pattern.accept;
+        }
+        nfa.acceptState = -1;
+        nfa.buildIndex();
+        nfa.acceptPatterns = new int[nfa.stateCount];
+        Arrays.fill(nfa.acceptPatterns, -1);
+        for (int i = 0; i < acceptStates.length; i++) nfa.acceptPatterns[acceptStates[i]] = i;
+        return nfa;
     }
 
-    public static void resetDfaStateIdCounter() { nextDfaStateId = 0; }
-    public static int getNewDfaStateId() { return nextDfaStateId++; }
+    // --- Thompson constructions over the shared NFA ---
 
-    public void addTransition(int fromDfaState, char symbol, int toDfaState) {
-        transitions.computeIfAbsent(fromDfaState, k -> new HashMap<>()).put(symbol, toDfaState);
+    private int newState() {
+        return nfa.getNewStateId();
     }
 
-    public void setDfaStateMapping(int dfaId, Set<Integer> nfaStates) {
-        dfaStateToNfaStatesMap.put(dfaId, nfaStates);
+    private void epsilon(int from, int to) {
+        nfa.addTransition(new NFATransition(from, null, to));
     }
 
     @Override
-    public String toString() {
-        StringBuilder sb = new StringBuilder("DFA:\n");
-        sb.append("Alphabet: ").append(alphabet).append("\n");
-        sb.append("Start State ID: ").append(startStateId).append(" (NFA states: ").append(dfaStateToNfaStatesMap.get(startStateId)).append(")\n");
-        String acceptStatesStr = acceptStateIds.stream()
-                .map(id -> id + " (NFA states: " + dfaStateToNfaStatesMap.get(id) + ")")
-                .collect(Collectors.joining(", ", "[", "]"));
-        sb.append("Accept State IDs: ").append(acceptStatesStr).append("\n");
-        sb.append("Transitions:\n");
-        transitions.forEach((fromDfaState, transMap) ->
-                transMap.forEach((symbol, toDfaState) ->
-                        sb.append("  (").append(fromDfaState).append(" (").append(dfaStateToNfaStatesMap.get(fromDfaState)).append(")")
-                                .append(", ").append(symbol)
-                                .append(") -> ").append(toDfaState).append(" (").append(dfaStateToNfaStatesMap.get(toDfaState)).append(")\n")
-                )
-        );
-        return sb.toString();
+    public Fragment empty() {
+        int s = newState();
+        return new Fragment(s, s); // Epsilon NFA
     }
-}
 
-/**
- * DFAConverter converts an NFA to a DFA using subset construction.
- */
-class DFAConverter {
-    private static Set<Integer> epsilonClosure(Set<Integer> nfaStates, NFA nfa) {
-        Set<Integer> closure = new HashSet<>(nfaStates);
-        Stack<Integer> stack = new Stack<>();
-        stack.addAll(nfaStates);
-        while (!stack.isEmpty()) {
-            int currentState = stack.pop();
-            for (NFATransition t : nfa.transitions) {
-                if (t.fromState == currentState && t.symbol == null && closure.add(t.toState)) {
-                    stack.push(t.toState);
-                }
-            }
-        }
-        return closure;
+    @Override
+    public Fragment literal(CharSet label) {
+        int start = newState();
+        int end = newState();
+        nfa.addTransition(new NFATransition(start, label, end));
+        return new Fragment(start, end);
     }
 
-    private static Set<Integer> move(Set<Integer> nfaStates, char symbol, NFA nfa) {
-        return nfaStates.stream()
-                .flatMap(nfaState -> nfa.transitions.stream()
-                        .filter(t -> t.fromState == nfaState && t.symbol != null && t.symbol.equals(symbol))
-                        .map(t -> t.toState))
-                .collect(Collectors.toSet());
+    @Override
+    public Fragment star(Fragment f) {
+        int newStart = newState();
+        int newAccept = newState();
+        epsilon(newStart, f.start);
+        epsilon(f.accept, newAccept);
+        epsilon(f.accept, f.start);
+        epsilon(newStart, newAccept);
+        return new Fragment(newStart, newAccept);
     }
 
-    public static DFA convert(NFA nfa) {
-        DFA.resetDfaStateIdCounter();
-        DFA dfa = new DFA(nfa.alphabet);
-        Map<Set<Integer>, Integer> dfaStatesMap = new HashMap<>();
-        Queue<Set<Integer>> unprocessedDfaStates = new LinkedList<>();
+    @Override
+    public Fragment plus(Fragment f) {
+        int newStart = newState();
+        int newAccept = newState();
+        epsilon(newStart, f.start);
+        epsilon(f.accept, newAccept);
+        epsilon(f.accept, f.start);
+        return new Fragment(newStart, newAccept);
+    }
 
-        Set<Integer> initialNfaStates = epsilonClosure(Collections.singleton(nfa.startState), nfa);
-        int initialDfaStateId = DFA.getNewDfaStateId();
-        dfaStatesMap.put(initialNfaStates, initialDfaStateId);
-        dfa.setDfaStateMapping(initialDfaStateId, initialNfaStates);
-        unprocessedDfaStates.add(initialNfaStates);
-        dfa.startStateId = initialDfaStateId;
-        if (initialNfaStates.contains(nfa.acceptState)) {
-            dfa.acceptStateIds.add(initialDfaStateId);
-        }
+    @Override
+    public Fragment optional(Fragment f) {
+        int newStart = newState();
+        int newAccept = newState();
+        epsilon(newStart, f.start);
+        epsilon(f.accept, newAccept);
+        epsilon(newStart, newAccept);
+        return new Fragment(newStart, newAccept);
+    }
 
-        while (!unprocessedDfaStates.isEmpty()) {
-            Set<Integer> currentNfaStatesSet = unprocessedDfaStates.poll();
-            int currentDfaStateId = dfaStatesMap.get(currentNfaStatesSet);
+    @Override
+    public Fragment concatenate(Fragment f1, Fragment f2) {
+        epsilon(f1.accept, f2.start);
+        return new Fragment(f1.start, f2.accept);
+    }
 
-            for (char symbol : nfa.alphabet) {
-                Set<Integer> moveResult = move(currentNfaStatesSet, symbol, nfa);
-                if (moveResult.isEmpty()) continue;
-                Set<Integer> targetNfaStatesSet = epsilonClosure(moveResult, nfa);
-                int targetDfaStateId;
-                if (!dfaStatesMap.containsKey(targetNfaStatesSet)) {
-                    targetDfaStateId = DFA.getNewDfaStateId();
-                    dfaStatesMap.put(targetNfaStatesSet, targetDfaStateId);
-                    dfa.setDfaStateMapping(targetDfaStateId, targetNfaStatesSet);
-                    unprocessedDfaStates.add(targetNfaStatesSet);
-                    if (targetNfaStatesSet.contains(nfa.acceptState)) {
-                        dfa.acceptStateIds.add(targetDfaStateId);
-                    }
-                } else {
-                    targetDfaStateId = dfaStatesMap.get(targetNfaStatesSet);
-                }
-                dfa.addTransition(currentDfaStateId, symbol, targetDfaStateId);
-            }
-        }
-        return dfa;
+    @Override
+    public Fragment alternate(Fragment f1, Fragment f2) {
+        int newStart = newState();
+        int newAccept = newState();
+        epsilon(newStart, f1.start);
+        epsilon(newStart, f2.start);
+        epsilon(f1.accept, newAccept);
+        epsilon(f2.accept, newAccept);
+        return new Fragment(newStart, newAccept);
     }
 }
 
-// --- Part 3: DFA to Turing Machine ---
+// --- Part 2: NFA to DFA ---
 
 /**
- * TMRule represents a transition rule for the Turing Machine.
+ * NFAStateSet is an immutable set of NFA state ids, stored as a sorted int array.
+ * The hash is computed once on construction so the set is cheap to use as a key.
  */
-class TMRule {
-    String nextState;
-    char symbolToWrite;
-    char moveDirection; // 'L', 'R', 'S'
+final class NFAStateSet {
+    final int[] states;
+    private final int hash;
 
-    public TMRule(String nextState, char symbolToWrite, char moveDirection) {
-        this.nextState = nextState;
-        this.symbolToWrite = symbolToWrite;
-        this.moveDirection = moveDirection;
+    NFAStateSet(int[] sortedStates, int hash) {
+        this.states = sortedStates;
+        this.hash = hash;
+    }
+
+    static int hashOf(int[] sortedStates, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) h = 31 * h + sortedStates[i];
+        return h ^ (h >>> 16);
+    }
+
+    public boolean contains(int nfaState) {
+        return Arrays.binarySearch(states, nfaState) >= 0;
+    }
+
+    public int size() { return states.length; }
+
+    public boolean isEmpty() { return states.length == 0; }
+
+    boolean contentEquals(int[] sortedStates, int length) {
+        return Arrays.equals(states, 0, states.length, sortedStates, 0, length);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof NFAStateSet)) return false;
+        NFAStateSet other = (NFAStateSet) o;
+        return hash == other.hash && Arrays.equals(states, other.states);
     }
 
+    @Override
+    public int hashCode() { return hash; }
+
     @Override
     public String toString() {
-        return "(to_state=" + nextState + ", write=" + symbolToWrite + ", move=" + moveDirection + ")";
+        return Arrays.toString(states);
     }
 }
 
 /**
- * TuringMachine simulates a DFA.
+ * StateSetMap maps NFA state sets to DFA state ids using open addressing with
+ * linear probing. Lookups can be made against a scratch buffer, so a set is only
+ * allocated once it is known to be new.
  */
-class TuringMachine {
-    private static final String TM_ACCEPT_STATE = "q_accept_tm";
-    private static final String TM_REJECT_STATE = "q_reject_tm";
-    private static final char BLANK_SYMBOL = '_';
+final class StateSetMap {
+    private NFAStateSet[] keys = new NFAStateSet[64];
+    private int[] values = new int[64];
+    private int size;
+
+    public int size() { return size; }
+
+    /** Returns the DFA id for the given sorted states, or -1 if absent. */
+    public int get(int[] sortedStates, int length, int hash) {
+        int mask = keys.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            NFAStateSet key = keys[slot];
+            if (key == null) return -1;
+            if (key.hashCode() == hash && key.contentEquals(sortedStates, length)) return values[slot];
+        }
+    }
 
-    private Set<String> tmStates = new HashSet<>(Arrays.asList(TM_ACCEPT_STATE, TM_REJECT_STATE));
-    private String tmStartState;
-    private Set<Character> tapeAlphabet = new HashSet<>(Collections.singleton(BLANK_SYMBOL));
-    private Map<String, Map<Character, TMRule>> tmTransitions = new HashMap<>();
+    public int get(NFAStateSet set) {
+        return get(set.states, set.states.length, set.hashCode());
+    }
 
-    private String dfaStateToTmState(int dfaStateId) { return "q_dfa_" + dfaStateId; }
+    /** Adds a set known to be absent from the map. */
+    public void put(NFAStateSet set, int dfaId) {
+        if (2 * (size + 1) > keys.length) resize();
+        insert(keys, values, set, dfaId);
+        size++;
+    }
 
-    public static TuringMachine fromDFA(DFA dfa) {
-        TuringMachine tm = new TuringMachine();
-        tm.tapeAlphabet.addAll(dfa.alphabet);
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+    }
 
-        if (dfa.startStateId == -1 && dfa.alphabet.isEmpty() && dfa.dfaStateToNfaStatesMap.isEmpty()) {
-            // Handle case of truly empty DFA from perhaps an invalid regex or very specific empty NFA
-            // For example, regex "" might result in NFA start=accept, which becomes DFA start=accept
-            // If dfa.startStateId is -1, it means the DFA construction didn't even create a start state.
-            // This might imply the NFA was empty or couldn't be processed.
-            // A minimal TM might just reject everything or accept empty string if NFA did.
-            // For now, if DFA start is -1, TM start will be null, and simulate() handles it.
-        } else if (dfa.startStateId != -1) {
-            tm.tmStartState = tm.dfaStateToTmState(dfa.startStateId);
-            tm.tmStates.add(tm.tmStartState);
-        }
-
-
-        // Convert DFA transitions to TM transitions
-        dfa.transitions.forEach((fromDfaState, transMap) -> {
-            String currentTmState = tm.dfaStateToTmState(fromDfaState);
-            tm.tmStates.add(currentTmState);
-            transMap.forEach((symbol, toDfaState) -> {
-                String nextTmState = tm.dfaStateToTmState(toDfaState);
-                tm.tmStates.add(nextTmState);
-                tm.tmTransitions.computeIfAbsent(currentTmState, k -> new HashMap<>())
-                        .put(symbol, new TMRule(nextTmState, symbol, 'R'));
-            });
-        });
+    private static void insert(NFAStateSet[] keys, int[] values, NFAStateSet set, int dfaId) {
+        int mask = keys.length - 1;
+        int slot = set.hashCode() & mask;
+        while (keys[slot] != null) slot = (slot + 1) & mask;
+        keys[slot] = set;
+        values[slot] = dfaId;
+    }
 
-        // Collect all unique DFA states involved for adding default TM rules
-        Set<Integer> allRelevantDfaStates = new HashSet<>();
-        if (dfa.startStateId != -1) allRelevantDfaStates.add(dfa.startStateId);
-        allRelevantDfaStates.addAll(dfa.acceptStateIds);
-        dfa.transitions.forEach((from, transMap) -> {
-            allRelevantDfaStates.add(from);
-            allRelevantDfaStates.addAll(transMap.values());
-        });
-        // Ensure all accept states are added to tmStates for processing below
-        dfa.acceptStateIds.forEach(id -> tm.tmStates.add(tm.dfaStateToTmState(id)));
+    private void resize() {
+        NFAStateSet[] newKeys = new NFAStateSet[keys.length * 2];
+        int[] newValues = new int[values.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) insert(newKeys, newValues, keys[i], values[i]);
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+}
+
+/**
+ * SubsetWorkspace holds the scratch space for subset construction over one indexed NFA:
+ * a membership bitmap and a state buffer that are reused for every move and closure.
+ */
+final class SubsetWorkspace {
+    private final NFA nfa;
+    private final long[] marks;
+    int[] buffer;
+    int size;
+
+    SubsetWorkspace(NFA nfa) {
+        this.nfa = nfa;
+        this.marks = new long[(nfa.stateCount + 63) >>> 6];
+        this.buffer = new int[16];
+    }
 
+    /** A workspace for plain sets of ids below idCount; addMove and closeOverEpsilon are unavailable. */
+    SubsetWorkspace(int idCount) {
+        this.nfa = null;
+        this.marks = new long[(idCount + 63) >>> 6];
+        this.buffer = new int[16];
+    }
 
-        // Add rules for BLANK_SYMBOL and symbols not in DFA transitions (implicit rejection)
-        for (int dfaStateId : allRelevantDfaStates) {
-            String currentTmState = tm.dfaStateToTmState(dfaStateId);
-            Map<Character, TMRule> stateSpecificRules = tm.tmTransitions.computeIfAbsent(currentTmState, k -> new HashMap<>());
+    /** Empties the buffer, clearing only the marks that were set. */
+    public void clear() {
+        for (int i = 0; i < size; i++) marks[buffer[i] >>> 6] = 0;
+        size = 0;
+    }
 
-            String nextStateOnBlank = dfa.acceptStateIds.contains(dfaStateId) ? TM_ACCEPT_STATE : TM_REJECT_STATE;
-            stateSpecificRules.put(BLANK_SYMBOL, new TMRule(nextStateOnBlank, BLANK_SYMBOL, 'S'));
+    public void add(int nfaState) {
+        long bit = 1L << nfaState;
+        int word = nfaState >>> 6;
+        if ((marks[word] & bit) != 0) return;
+        marks[word] |= bit;
+        if (size == buffer.length) buffer = Arrays.copyOf(buffer, size * 2);
+        buffer[size++] = nfaState;
+    }
 
-            for (char sym : dfa.alphabet) {
-                if (!dfa.transitions.getOrDefault(dfaStateId, Collections.emptyMap()).containsKey(sym)) {
-                    stateSpecificRules.putIfAbsent(sym, new TMRule(TM_REJECT_STATE, sym, 'S'));
-                }
+    /** Adds the successors of every state in the set on the given symbol class. */
+    public void addMove(NFAStateSet set, int symbolClass) {
+        int classCount = nfa.classMap.classCount;
+        for (int nfaState : set.states) {
+            int key = nfaState * classCount + symbolClass;
+            for (int i = nfa.symbolOffsets[key]; i < nfa.symbolOffsets[key + 1]; i++) {
+                add(nfa.symbolTargets[i]);
             }
         }
+    }
 
-        // Handle case: DFA has a start state that's an accept state, but no transitions (e.g. regex for empty string "")
-        if (dfa.startStateId != -1 && dfa.transitions.isEmpty() && dfa.acceptStateIds.contains(dfa.startStateId)) {
-            String startTmState = tm.dfaStateToTmState(dfa.startStateId);
-            Map<Character, TMRule> rules = tm.tmTransitions.computeIfAbsent(startTmState, k -> new HashMap<>());
-            rules.put(BLANK_SYMBOL, new TMRule(TM_ACCEPT_STATE, BLANK_SYMBOL, 'S'));
-            for (char sym : dfa.alphabet) { // Any actual symbol should lead to reject for empty string matcher
-                rules.putIfAbsent(sym, new TMRule(TM_REJECT_STATE, sym, 'S'));
+    /** Extends the buffer to its epsilon closure; the buffer doubles as the work stack. */
+    public void closeOverEpsilon() {
+        for (int next = 0; next < size; next++) {
+            int currentState = buffer[next];
+            for (int i = nfa.epsilonOffsets[currentState]; i < nfa.epsilonOffsets[currentState + 1]; i++) {
+                add(nfa.epsilonTargets[i]);
             }
         }
-        return tm;
+        sort();
     }
 
-    public boolean simulate(String input) {
-        if (this.tmStartState == null) {
-            // This can happen if the DFA was effectively empty or invalid.
-            // If the regex was empty "", the DFA should accept empty string.
-            // The fromDFA logic for empty string regex (NFA start=accept) should create a DFA
-            // where startStateId is an acceptStateId, and it has a BLANK transition to TM_ACCEPT_STATE.
-            // If tmStartState is null here, it implies a more fundamental issue or an unhandled DFA structure.
-            // For an empty regex "", the NFA is start=accept. DFA is start=accept.
-            // TM should accept "" (blank on tape from start).
-            // Let's assume if tmStartState is null, it means no valid TM could be formed to accept anything.
-            // However, an empty regex "" should result in a TM that accepts an empty input.
-            // This check might need refinement based on how fromDFA handles truly empty/minimal DFAs.
-            // If the DFA had a start state 0, and it was an accept state, and no transitions,
-            // then tmStartState would be q_dfa_0. Reading BLANK should go to TM_ACCEPT_STATE.
-            // So, if tmStartState is null, it means the DFA itself was problematic.
-            System.err.println("TM start state is not initialized. Defaulting to reject. Input: \"" + input + "\"");
-            return false;
-        }
+    public void sort() {
+        Arrays.sort(buffer, 0, size);
+    }
 
-        List<Character> tape = input.chars().mapToObj(c -> (char) c).collect(Collectors.toList());
-        String currentState = this.tmStartState;
-        int headPosition = 0;
-        int maxSteps = input.length() + 5; // Prevent infinite loops
+    public int hash() {
+        return NFAStateSet.hashOf(buffer, size);
+    }
 
-        for (int steps = 0; steps < maxSteps; steps++) {
-            if (TM_ACCEPT_STATE.equals(currentState)) return true;
-            if (TM_REJECT_STATE.equals(currentState)) return false;
+    public NFAStateSet toStateSet(int hash) {
+        return new NFAStateSet(Arrays.copyOf(buffer, size), hash);
+    }
+}
 
-            char charUnderHead = (headPosition >= 0 && headPosition < tape.size()) ? tape.get(headPosition) : BLANK_SYMBOL;
+/**
+ * DFA represents a Deterministic Finite Automaton.
+ */
+class DFA {
+    private int nextDfaStateId = 0;
+    int startStateId = -1;
+    Set<Integer> acceptStateIds = new HashSet<>();
+    Map<Integer, Map<Integer, Integer>> transitions = new HashMap<>(); // keyed by symbol class
+    Set<CharSet> alphabet;
+    CharClassMap classMap;
+    List<NFAStateSet> dfaStateToNfaStatesMap = new ArrayList<>(); // indexed by DFA state id
 
-            Map<Character, TMRule> stateTransitionsMap = tmTransitions.get(currentState);
-            if (stateTransitionsMap == null) return false; // No transitions from state
+    // Multi-pattern DFAs only: the label of each accept state, as an index into a
+    // deduplicated table of sorted pattern-id arrays.
+    Map<Integer, Integer> acceptLabels = new HashMap<>();
+    List<int[]> labelTable = new ArrayList<>();
 
-            TMRule rule = stateTransitionsMap.get(charUnderHead);
-            if (rule == null) return false; // No rule for this symbol
+    public DFA(Set<CharSet> alphabet, CharClassMap classMap) {
+        this.alphabet = alphabet;
+        this.classMap = classMap;
+    }
 
-            if (headPosition >= 0 && headPosition < tape.size()) {
-                tape.set(headPosition, rule.symbolToWrite);
-            } else if (headPosition == tape.size() && rule.symbolToWrite != BLANK_SYMBOL) {
-                tape.add(rule.symbolToWrite);
-            }
+    public int getNewDfaStateId() { return nextDfaStateId++; }
 
-            currentState = rule.nextState;
-            if (rule.moveDirection == 'R') headPosition++;
-            else if (rule.moveDirection == 'L') headPosition = Math.max(0, headPosition - 1);
+    public void addTransition(int fromDfaState, int symbolClass, int toDfaState) {
+        transitions.computeIfAbsent(fromDfaState, k -> new HashMap<>()).put(symbolClass, toDfaState);
+    }
+
+    public int stateCount() { return dfaStateToNfaStatesMap.size(); }
+
+    public CompiledDFA compile() { return CompiledDFA.compile(this); }
+
+    public void setDfaStateMapping(int dfaId, NFAStateSet nfaStates) {
+        while (dfaStateToNfaStatesMap.size() <= dfaId) dfaStateToNfaStatesMap.add(null);
+        dfaStateToNfaStatesMap.set(dfaId, nfaStates);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("DFA:\n");
+        sb.append("Alphabet: ").append(alphabet).append("\n");
+        sb.append("Start State ID: ").append(startStateId).append(" (NFA states: ").append(dfaStateToNfaStatesMap.get(startStateId)).append(")\n");
+        String acceptStatesStr = acceptStateIds.stream()
+                .map(id -> id + " (NFA states: " + dfaStateToNfaStatesMap.get(id) + ")"
+                        + (acceptLabels.containsKey(id) ? " patterns " + Arrays.toString(labelTable.get(acceptLabels.get(id))) : ""))
+                .collect(Collectors.joining(", ", "[", "]"));
+        sb.append("Accept State IDs: ").append(acceptStatesStr).append("\n");
+        sb.append("Transitions:\n");
+        transitions.forEach((fromDfaState, transMap) ->
+                transMap.forEach((symbolClass, toDfaState) ->
+                        sb.append("  (").append(fromDfaState).append(" (").append(dfaStateToNfaStatesMap.get(fromDfaState)).append(")")
+                                .append(", ").append(classMap.describe(symbolClass))
+                                .append(") -> ").append(toDfaState).append(" (").append(dfaStateToNfaStatesMap.get(toDfaState)).append(")\n")
+                )
+        );
+        return sb.toString();
+    }
+}
+
+/**
+ * CompileBudget bounds one determinization: the number of DFA states, the estimated
+ * memory of the states and transitions built so far, and the wall time. A limit of 0
+ * means unlimited. Constructions check it as they discover states and stop with
+ * CompileBudgetExceededException as soon as one limit is passed.
+ */
+final class CompileBudget {
+    static final CompileBudget UNLIMITED = new CompileBudget(0, 0, 0);
+
+    // Estimated heap cost of a DFA state (set object, map slot, list entry) and of one
+    // boxed transition map entry, in the spirit of LazyDFA's accounting.
+    static final int STATE_OVERHEAD_BYTES = 64;
+    static final int TRANSITION_BYTES = 64;
+
+    final int maxDfaStates;
+    final long maxBytes;
+    final long maxNanos;
+
+    CompileBudget(int maxDfaStates, long maxBytes, long maxMillis) {
+        if (maxDfaStates < 0 || maxBytes < 0 || maxMillis < 0) {
+            throw new IllegalArgumentException("Compile budget limits must be non-negative");
+        }
+        this.maxDfaStates = maxDfaStates;
+        this.maxBytes = maxBytes;
+        this.maxNanos = maxMillis * 1_000_000L;
+    }
+
+    boolean isUnlimited() {
+        return maxDfaStates == 0 && maxBytes == 0 && maxNanos == 0;
+    }
+
+    /** Throws if any limit is passed; startNanos is System.nanoTime() when the construction began. */
+    void check(int dfaStates, long estimatedBytes, long startNanos) {
+        if (maxDfaStates > 0 && dfaStates > maxDfaStates) {
+            throw new CompileBudgetExceededException("DFA state limit of " + maxDfaStates + " exceeded");
+        }
+        if (maxBytes > 0 && estimatedBytes > maxBytes) {
+            throw new CompileBudgetExceededException("DFA memory limit of " + maxBytes + " bytes exceeded");
+        }
+        if (maxNanos > 0 && System.nanoTime() - startNanos > maxNanos) {
+            throw new CompileBudgetExceededException("Compile time limit of " + maxNanos / 1_000_000 + " ms exceeded");
+        }
+    }
+}
+
+/** Thrown when a determinization passes its CompileBudget; the partial DFA is discarded. */
+final class CompileBudgetExceededException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    CompileBudgetExceededException(String message) {
+        super(message);
+    }
+}
+
+/**
+ * DFAConverter converts an NFA to a DFA using subset construction.
+ * All working state is local to a call, so conversions may run concurrently.
+ */
+class DFAConverter {
+    public static DFA convert(NFA nfa) {
+        return convert(nfa, CompileBudget.UNLIMITED);
+    }
+
+    /** Subset construction that gives up with CompileBudgetExceededException once the budget is spent. */
+    public static DFA convert(NFA nfa, CompileBudget budget) {
+        Instrumentation.Probe probe = Instrumentation.startStage(null);
+        boolean budgeted = !budget.isUnlimited();
+        long startNanos = budgeted ? System.nanoTime() : 0;
+        long estimatedBytes = 0;
+        nfa.ensureIndexed();
+        DFA dfa = new DFA(nfa.alphabet, nfa.classMap);
+        SubsetWorkspace workspace = new SubsetWorkspace(nfa);
+        StateSetMap dfaStatesMap = new StateSetMap();
+        Queue<NFAStateSet> unprocessedDfaStates = new ArrayDeque<>();
+        Map<List<Integer>, Integer> labelIds = new HashMap<>();
+        int closures = 1;
+        long transitionCount = 0;
+
+        workspace.add(nfa.startState);
+        workspace.closeOverEpsilon();
+        NFAStateSet initialNfaStates = workspace.toStateSet(workspace.hash());
+        workspace.clear();
+        int initialDfaStateId = dfa.getNewDfaStateId();
+        dfaStatesMap.put(initialNfaStates, initialDfaStateId);
+        dfa.setDfaStateMapping(initialDfaStateId, initialNfaStates);
+        unprocessedDfaStates.add(initialNfaStates);
+        dfa.startStateId = initialDfaStateId;
+        markAccepting(dfa, initialDfaStateId, initialNfaStates, nfa, labelIds);
+
+        while (!unprocessedDfaStates.isEmpty()) {
+            NFAStateSet currentNfaStatesSet = unprocessedDfaStates.poll();
+            int currentDfaStateId = dfaStatesMap.get(currentNfaStatesSet);
+
+            for (int symbolClass = 0; symbolClass < nfa.classMap.classCount; symbolClass++) {
+                workspace.addMove(currentNfaStatesSet, symbolClass);
+                if (workspace.size == 0) continue;
+                workspace.closeOverEpsilon();
+                closures++;
+                int hash = workspace.hash();
+                int targetDfaStateId = dfaStatesMap.get(workspace.buffer, workspace.size, hash);
+                if (targetDfaStateId < 0) {
+                    NFAStateSet targetNfaStatesSet = workspace.toStateSet(hash);
+                    targetDfaStateId = dfa.getNewDfaStateId();
+                    dfaStatesMap.put(targetNfaStatesSet, targetDfaStateId);
+                    dfa.setDfaStateMapping(targetDfaStateId, targetNfaStatesSet);
+                    unprocessedDfaStates.add(targetNfaStatesSet);
+                    markAccepting(dfa, targetDfaStateId, targetNfaStatesSet, nfa, labelIds);
+                    if (budgeted) {
+                        estimatedBytes += CompileBudget.STATE_OVERHEAD_BYTES + 4L * targetNfaStatesSet.size();
+                        budget.check(dfa.stateCount(), estimatedBytes + CompileBudget.TRANSITION_BYTES * transitionCount, startNanos);
+                    }
+                }
+                workspace.clear();
+                dfa.addTransition(currentDfaStateId, symbolClass, targetDfaStateId);
+                transitionCount++;
+            }
+        }
+        if (probe != null) {
+            probe.finish(PipelineStage.CONVERT, new ConversionStats(nfa.stateCount, dfa.stateCount(), closures, transitionCount));
+        }
+        return dfa;
+    }
+
+    /** Marks a new DFA state as accepting and, for multi-pattern NFAs, labels it with its patterns. */
+    static void markAccepting(DFA dfa, int dfaStateId, NFAStateSet nfaStates, NFA nfa, Map<List<Integer>, Integer> labelIds) {
+        if (nfa.acceptPatterns == null) {
+            if (nfaStates.contains(nfa.acceptState)) dfa.acceptStateIds.add(dfaStateId);
+            return;
+        }
+        List<Integer> patterns = new ArrayList<>();
+        for (int nfaState : nfaStates.states) {
+            if (nfa.acceptPatterns[nfaState] >= 0) patterns.add(nfa.acceptPatterns[nfaState]);
+        }
+        if (patterns.isEmpty()) return;
+        Collections.sort(patterns);
+        Integer label = labelIds.get(patterns);
+        if (label == null) {
+            label = dfa.labelTable.size();
+            labelIds.put(patterns, label);
+            dfa.labelTable.add(patterns.stream().mapToInt(Integer::intValue).toArray());
+        }
+        dfa.acceptStateIds.add(dfaStateId);
+        dfa.acceptLabels.put(dfaStateId, label);
+    }
+}
+
+/**
+ * FollowposDFABuilder builds a DFA straight from the regex syntax tree (Aho, Sethi and
+ * Ullman's construction), with no NFA and no epsilon closures. Every literal is a
+ * position; the parser drives nullable/firstpos/lastpos bottom-up and fills in
+ * followpos as it goes. The regex is augmented with an end marker position, and each
+ * DFA state is a set of positions, accepting when it holds the marker.
+ * The result is equivalent to DFAConverter.convert over the Thompson NFA.
+ */
+class FollowposDFABuilder implements RegexSink<FollowposDFABuilder.Node> {
+    /** nullable, firstpos and lastpos of one subexpression; consumed by its parent. */
+    static final class Node {
+        boolean nullable;
+        BitSet firstpos;
+        BitSet lastpos;
+
+        Node(boolean nullable, BitSet firstpos, BitSet lastpos) {
+            this.nullable = nullable;
+            this.firstpos = firstpos;
+            this.lastpos = lastpos;
+        }
+    }
+
+    private final List<CharSet> positionLabels = new ArrayList<>(); // null for the end marker
+    private final List<BitSet> followpos = new ArrayList<>();
+
+    private FollowposDFABuilder() {
+    }
+
+    public static DFA build(String regex) {
+        return build(regex, CompileBudget.UNLIMITED);
+    }
+
+    /** Builds the DFA, giving up with CompileBudgetExceededException once the budget is spent. */
+    public static DFA build(String regex, CompileBudget budget) {
+        Instrumentation.Probe probe = Instrumentation.startStage(regex);
+        FollowposDFABuilder builder = new FollowposDFABuilder();
+        Node root = new RegexParser<>(regex, builder).parse();
+        int endMarker = builder.newPosition(null);
+        BitSet marker = new BitSet();
+        marker.set(endMarker);
+        root = builder.concatenate(root, new Node(false, marker, (BitSet) marker.clone()));
+        DFA dfa = builder.toDFA(root.firstpos, endMarker, budget);
+        if (probe != null) {
+            // Positions stand in for NFA states; there are no epsilon closures to count.
+            int transitionCount = dfa.transitions.values().stream().mapToInt(Map::size).sum();
+            probe.finish(PipelineStage.FOLLOWPOS, new ConversionStats(builder.positionLabels.size(), dfa.stateCount(), 0, transitionCount));
+        }
+        return dfa;
+    }
+
+    private int newPosition(CharSet label) {
+        positionLabels.add(label);
+        followpos.add(new BitSet());
+        return positionLabels.size() - 1;
+    }
+
+    /** followpos(p) gains to for every p in from. */
+    private void follow(BitSet from, BitSet to) {
+        for (int p = from.nextSetBit(0); p >= 0; p = from.nextSetBit(p + 1)) followpos.get(p).or(to);
+    }
+
+    @Override
+    public Node empty() {
+        return new Node(true, new BitSet(), new BitSet());
+    }
+
+    @Override
+    public Node literal(CharSet label) {
+        BitSet position = new BitSet();
+        position.set(newPosition(label));
+        return new Node(false, position, (BitSet) position.clone());
+    }
+
+    @Override
+    public Node star(Node inner) {
+        follow(inner.lastpos, inner.firstpos);
+        inner.nullable = true;
+        return inner;
+    }
+
+    @Override
+    public Node plus(Node inner) {
+        follow(inner.lastpos, inner.firstpos);
+        return inner;
+    }
+
+    @Override
+    public Node optional(Node inner) {
+        inner.nullable = true;
+        return inner;
+    }
+
+    @Override
+    public Node concatenate(Node first, Node second) {
+        follow(first.lastpos, second.firstpos);
+        if (first.nullable) first.firstpos.or(second.firstpos);
+        if (second.nullable) second.lastpos.or(first.lastpos);
+        return new Node(first.nullable && second.nullable, first.firstpos, second.lastpos);
+    }
+
+    @Override
+    public Node alternate(Node first, Node second) {
+        first.firstpos.or(second.firstpos);
+        first.lastpos.or(second.lastpos);
+        first.nullable |= second.nullable;
+        return first;
+    }
+
+    /** Subset construction over positions; the mapping records positions in place of NFA states. */
+    private DFA toDFA(BitSet startPositions, int endMarker, CompileBudget budget) {
+        boolean budgeted = !budget.isUnlimited();
+        long startNanos = budgeted ? System.nanoTime() : 0;
+        long estimatedBytes = 0;
+        long transitionCount = 0;
+        int positionCount = positionLabels.size();
+        Set<CharSet> alphabet = new TreeSet<>();
+        List<int[]> labels = new ArrayList<>();
+        for (CharSet label : positionLabels) {
+            if (label != null && alphabet.add(label)) labels.add(label.ranges);
+        }
+        CharClassMap classMap = CharClassMap.fromLabels(labels);
+        Map<CharSet, int[]> classesOfLabel = new HashMap<>();
+        for (CharSet label : alphabet) classesOfLabel.put(label, classMap.classesOf(label));
+        int[][] positionClasses = new int[positionCount][];
+        int[][] follows = new int[positionCount][];
+        for (int p = 0; p < positionCount; p++) {
+            CharSet label = positionLabels.get(p);
+            positionClasses[p] = label == null ? new int[0] : classesOfLabel.get(label);
+            follows[p] = followpos.get(p).stream().toArray();
+        }
+
+        DFA dfa = new DFA(alphabet, classMap);
+        SubsetWorkspace workspace = new SubsetWorkspace(positionCount);
+        StateSetMap dfaStatesMap = new StateSetMap();
+        Queue<NFAStateSet> unprocessedDfaStates = new ArrayDeque<>();
+        // Positions of the current state grouped by the classes they match.
+        int[][] positionsOfClass = new int[classMap.classCount][4];
+        int[] positionsOfClassCount = new int[classMap.classCount];
+        int[] touchedClasses = new int[classMap.classCount];
+
+        int[] start = startPositions.stream().toArray();
+        NFAStateSet initial = new NFAStateSet(start, NFAStateSet.hashOf(start, start.length));
+        dfa.startStateId = dfa.getNewDfaStateId();
+        dfaStatesMap.put(initial, dfa.startStateId);
+        dfa.setDfaStateMapping(dfa.startStateId, initial);
+        if (initial.contains(endMarker)) dfa.acceptStateIds.add(dfa.startStateId);
+        unprocessedDfaStates.add(initial);
+
+        while (!unprocessedDfaStates.isEmpty()) {
+            NFAStateSet current = unprocessedDfaStates.poll();
+            int currentDfaStateId = dfaStatesMap.get(current);
+            int touchedCount = 0;
+            for (int p : current.states) {
+                for (int symbolClass : positionClasses[p]) {
+                    int n = positionsOfClassCount[symbolClass]++;
+                    if (n == 0) touchedClasses[touchedCount++] = symbolClass;
+                    if (n == positionsOfClass[symbolClass].length) {
+                        positionsOfClass[symbolClass] = Arrays.copyOf(positionsOfClass[symbolClass], 2 * n);
+                    }
+                    positionsOfClass[symbolClass][n] = p;
+                }
+            }
+            for (int t = 0; t < touchedCount; t++) {
+                int symbolClass = touchedClasses[t];
+                for (int i = 0; i < positionsOfClassCount[symbolClass]; i++) {
+                    for (int q : follows[positionsOfClass[symbolClass][i]]) workspace.add(q);
+                }
+                positionsOfClassCount[symbolClass] = 0;
+                if (workspace.size == 0) continue;
+                workspace.sort();
+                int hash = workspace.hash();
+                int targetDfaStateId = dfaStatesMap.get(workspace.buffer, workspace.size, hash);
+                if (targetDfaStateId < 0) {
+                    NFAStateSet target = workspace.toStateSet(hash);
+                    targetDfaStateId = dfa.getNewDfaStateId();
+                    dfaStatesMap.put(target, targetDfaStateId);
+                    dfa.setDfaStateMapping(targetDfaStateId, target);
+                    if (target.contains(endMarker)) dfa.acceptStateIds.add(targetDfaStateId);
+                    unprocessedDfaStates.add(target);
+                    if (budgeted) {
+                        estimatedBytes += CompileBudget.STATE_OVERHEAD_BYTES + 4L * target.size();
+                        budget.check(dfa.stateCount(), estimatedBytes + CompileBudget.TRANSITION_BYTES * transitionCount, startNanos);
+                    }
+                }
+                workspace.clear();
+                dfa.addTransition(currentDfaStateId, symbolClass, targetDfaStateId);
+                transitionCount++;
+            }
+        }
+        return dfa;
+    }
+}
+
+/**
+ * DFAMinimizer merges equivalent DFA states using Hopcroft's partition refinement
+ * with a worklist of splitter blocks, in O(n * |alphabet| * log n).
+ * The input DFA is completed with an implicit dead state; states equivalent to it are
+ * dropped from the result, so missing transitions still mean rejection.
+ */
+class DFAMinimizer {
+    public static DFA minimize(DFA dfa) {
+        if (dfa.startStateId == -1) return dfa;
+        Instrumentation.Probe probe = Instrumentation.startStage(null);
+
+        int symbolCount = dfa.classMap.classCount;
+
+        int stateCount = dfa.startStateId + 1;
+        for (int id : dfa.acceptStateIds) stateCount = Math.max(stateCount, id + 1);
+        for (Map.Entry<Integer, Map<Integer, Integer>> e : dfa.transitions.entrySet()) {
+            stateCount = Math.max(stateCount, e.getKey() + 1);
+            for (int to : e.getValue().values()) stateCount = Math.max(stateCount, to + 1);
+        }
+        int dead = stateCount;
+        int n = stateCount + 1;
+
+        // Complete transition table, then its inverse in CSR form per symbol.
+        int[] delta = new int[n * symbolCount];
+        Arrays.fill(delta, dead);
+        dfa.transitions.forEach((from, transMap) -> transMap.forEach((symbolClass, to) ->
+                delta[from * symbolCount + symbolClass] = to));
+        int[] inverseOffsets = new int[n * symbolCount + 1];
+        for (int state = 0; state < n; state++) {
+            for (int a = 0; a < symbolCount; a++) inverseOffsets[delta[state * symbolCount + a] * symbolCount + a + 1]++;
+        }
+        for (int i = 1; i < inverseOffsets.length; i++) inverseOffsets[i] += inverseOffsets[i - 1];
+        int[] inverseSources = new int[n * symbolCount];
+        int[] fill = Arrays.copyOf(inverseOffsets, n * symbolCount);
+        for (int state = 0; state < n; state++) {
+            for (int a = 0; a < symbolCount; a++) inverseSources[fill[delta[state * symbolCount + a] * symbolCount + a]++] = state;
+        }
+
+        // Initial blocks: non-accepting states, then one block per accept label, so states
+        // of a multi-pattern DFA are only merged when they accept the same patterns.
+        Partition partition = new Partition(n, state -> !dfa.acceptStateIds.contains(state) ? -1
+                : dfa.acceptLabels.getOrDefault(state, 0));
+        Deque<Integer> worklist = new ArrayDeque<>();
+        boolean[] inWorklist = new boolean[n + 1];
+        int largest = 0;
+        for (int block = 1; block < partition.blockCount; block++) {
+            if (partition.size(block) > partition.size(largest)) largest = block;
+        }
+        for (int block = 0; block < partition.blockCount; block++) {
+            if (block != largest || partition.blockCount == 1) {
+                worklist.add(block);
+                inWorklist[block] = true;
+            }
+        }
+
+        int[] splitter = new int[n];
+        while (!worklist.isEmpty()) {
+            int block = worklist.poll();
+            inWorklist[block] = false;
+            int splitterSize = partition.copyMembers(block, splitter);
+            for (int a = 0; a < symbolCount; a++) {
+                for (int i = 0; i < splitterSize; i++) {
+                    int key = splitter[i] * symbolCount + a;
+                    for (int j = inverseOffsets[key]; j < inverseOffsets[key + 1]; j++) {
+                        partition.mark(inverseSources[j]);
+                    }
+                }
+                partition.splitMarked((oldBlock, newBlock) -> {
+                    if (inWorklist[oldBlock]) {
+                        worklist.add(newBlock);
+                        inWorklist[newBlock] = true;
+                    } else {
+                        int smaller = partition.size(newBlock) <= partition.size(oldBlock) ? newBlock : oldBlock;
+                        worklist.add(smaller);
+                        inWorklist[smaller] = true;
+                    }
+                });
+            }
+        }
+
+        // Renumber live blocks breadth-first from the start state, skipping the dead block.
+        int deadBlock = partition.blockOf[dead];
+        int[] newId = new int[partition.blockCount];
+        Arrays.fill(newId, -1);
+        int[] order = new int[partition.blockCount];
+        int liveCount = 0;
+        newId[partition.blockOf[dfa.startStateId]] = liveCount;
+        order[liveCount++] = partition.blockOf[dfa.startStateId];
+        DFA minimized = new DFA(dfa.alphabet, dfa.classMap);
+        minimized.startStateId = 0;
+        minimized.labelTable = dfa.labelTable;
+        for (int head = 0; head < liveCount; head++) {
+            int block = order[head];
+            int representative = partition.elements[partition.first[block]];
+            for (int a = 0; a < symbolCount; a++) {
+                int targetBlock = partition.blockOf[delta[representative * symbolCount + a]];
+                if (targetBlock == deadBlock) continue;
+                if (newId[targetBlock] < 0) {
+                    newId[targetBlock] = liveCount;
+                    order[liveCount++] = targetBlock;
+                }
+                minimized.addTransition(head, a, newId[targetBlock]);
+            }
+            if (dfa.acceptStateIds.contains(representative)) minimized.acceptStateIds.add(head);
+            if (dfa.acceptLabels.containsKey(representative)) minimized.acceptLabels.put(head, dfa.acceptLabels.get(representative));
+            minimized.setDfaStateMapping(head, mergedNfaStates(dfa, partition, block));
+        }
+        if (probe != null) probe.finish(PipelineStage.MINIMIZE, null);
+        return minimized;
+    }
+
+    private static NFAStateSet mergedNfaStates(DFA dfa, Partition partition, int block) {
+        List<NFAStateSet> memberSets = new ArrayList<>();
+        int total = 0;
+        for (int i = partition.first[block]; i < partition.past[block]; i++) {
+            int state = partition.elements[i];
+            if (state >= dfa.dfaStateToNfaStatesMap.size() || dfa.dfaStateToNfaStatesMap.get(state) == null) continue;
+            NFAStateSet set = dfa.dfaStateToNfaStatesMap.get(state);
+            memberSets.add(set);
+            total += set.size();
+        }
+        int[] merged = new int[total];
+        int length = 0;
+        for (NFAStateSet set : memberSets) {
+            System.arraycopy(set.states, 0, merged, length, set.size());
+            length += set.size();
+        }
+        Arrays.sort(merged, 0, length);
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (distinct == 0 || merged[distinct - 1] != merged[i]) merged[distinct++] = merged[i];
+        }
+        return new NFAStateSet(Arrays.copyOf(merged, distinct), NFAStateSet.hashOf(merged, distinct));
+    }
+
+    /**
+     * Partition of states 0..n-1 into blocks. Members of a block are contiguous in
+     * 'elements'; marked members are moved to the front of their block.
+     */
+    private static final class Partition {
+        final int[] elements;
+        final int[] location;
+        final int[] blockOf;
+        final int[] first;
+        final int[] past;
+        private final int[] markedCount;
+        private final int[] touched;
+        private int touchedCount;
+        int blockCount;
+
+        /** Starts with one block per distinct key, in order of first appearance. */
+        Partition(int n, IntUnaryOperator initialKey) {
+            elements = new int[n];
+            location = new int[n];
+            blockOf = new int[n];
+            first = new int[n];
+            past = new int[n];
+            markedCount = new int[n];
+            touched = new int[n];
+            Map<Integer, Integer> blockOfKey = new HashMap<>();
+            for (int state = 0; state < n; state++) {
+                int block = blockOfKey.computeIfAbsent(initialKey.applyAsInt(state), k -> blockOfKey.size());
+                blockOf[state] = block;
+                past[block]++; // block sizes for now
+            }
+            blockCount = blockOfKey.size();
+            for (int block = 0, start = 0; block < blockCount; block++) {
+                first[block] = start;
+                start += past[block];
+                past[block] = first[block];
+            }
+            for (int state = 0; state < n; state++) {
+                int pos = past[blockOf[state]]++;
+                elements[pos] = state;
+                location[state] = pos;
+            }
+        }
+
+        int size(int block) { return past[block] - first[block]; }
+
+        int copyMembers(int block, int[] into) {
+            int size = size(block);
+            System.arraycopy(elements, first[block], into, 0, size);
+            return size;
+        }
+
+        void mark(int state) {
+            int block = blockOf[state];
+            int boundary = first[block] + markedCount[block];
+            int pos = location[state];
+            if (pos < boundary) return; // already marked
+            int other = elements[boundary];
+            elements[boundary] = state;
+            location[state] = boundary;
+            elements[pos] = other;
+            location[other] = pos;
+            if (markedCount[block]++ == 0) touched[touchedCount++] = block;
+        }
+
+        void splitMarked(SplitListener listener) {
+            for (int t = 0; t < touchedCount; t++) {
+                int block = touched[t];
+                int marked = markedCount[block];
+                markedCount[block] = 0;
+                if (marked == size(block)) continue;
+                int newBlock = blockCount++;
+                first[newBlock] = first[block];
+                past[newBlock] = first[block] + marked;
+                first[block] = past[newBlock];
+                for (int i = first[newBlock]; i < past[newBlock]; i++) blockOf[elements[i]] = newBlock;
+                listener.onSplit(block, newBlock);
+            }
+            touchedCount = 0;
+        }
+    }
+
+    private interface SplitListener {
+        void onSplit(int oldBlock, int newBlock);
+    }
+}
+
+/**
+ * LazyDFA matches input by running subset construction on demand, only for the
+ * transitions the input actually takes. Discovered states and transitions are cached;
+ * when the cache exceeds its memory budget it is flushed and rebuilt from the state
+ * being matched, so patterns whose full DFA would not fit in memory can still be used.
+ * Instances are not thread-safe since matching mutates the cache.
+ */
+class LazyDFA {
+    static final long DEFAULT_MEMORY_BUDGET = 8L << 20; // 8 MiB
+    private static final int UNKNOWN = -2; // transition not computed yet
+    private static final int DEAD = -1;    // no NFA state survives
+    private static final int STATE_OVERHEAD_BYTES = 64; // set object, map slot and list entry
+
+    private final NFA nfa;
+    private final int symbolCount;
+    private final long memoryBudget;
+    private final SubsetWorkspace workspace;
+    private final StateSetMap stateIds = new StateSetMap();
+    private final List<NFAStateSet> states = new ArrayList<>();
+    private BitSet acceptStates = new BitSet();
+    private int[] next = new int[0];
+    private int startState;
+    private long cacheBytes;
+    private int cacheFlushes;
+
+    public LazyDFA(NFA nfa) {
+        this(nfa, DEFAULT_MEMORY_BUDGET);
+    }
+
+    public LazyDFA(NFA nfa, long memoryBudget) {
+        nfa.ensureIndexed();
+        this.nfa = nfa;
+        this.symbolCount = nfa.classMap.classCount;
+        this.memoryBudget = memoryBudget;
+        this.workspace = new SubsetWorkspace(nfa);
+        resetCache();
+    }
+
+    public boolean matches(CharSequence input) {
+        int state = startState;
+        for (int i = 0; i < input.length(); i++) {
+            int symbolClass = nfa.classMap.classOf(input.charAt(i));
+            int target = next[state * symbolCount + symbolClass];
+            if (target == UNKNOWN) target = computeTransition(state, symbolClass);
+            if (target == DEAD) return false;
+            state = target;
+        }
+        return acceptStates.get(state);
+    }
+
+    /** Number of DFA states currently cached. */
+    public int cachedStateCount() { return states.size(); }
+
+    /** Number of times the cache was flushed because it exceeded its budget. */
+    public int cacheFlushes() { return cacheFlushes; }
+
+    private int computeTransition(int state, int symbolClass) {
+        workspace.addMove(states.get(state), symbolClass);
+        if (workspace.size == 0) {
+            next[state * symbolCount + symbolClass] = DEAD;
+            return DEAD;
+        }
+        workspace.closeOverEpsilon();
+        int hash = workspace.hash();
+        int target = stateIds.get(workspace.buffer, workspace.size, hash);
+        if (target < 0) {
+            NFAStateSet targetSet = workspace.toStateSet(hash);
+            if (cacheBytes + bytesFor(targetSet) > memoryBudget) {
+                // Flush: the source state id is no longer valid, so the transition is not recorded.
+                // The target may be the new start state, so look it up again after the reset.
+                workspace.clear();
+                resetCache();
+                cacheFlushes++;
+                target = stateIds.get(targetSet);
+                return target >= 0 ? target : addState(targetSet);
+            }
+            target = addState(targetSet);
+        }
+        workspace.clear();
+        next[state * symbolCount + symbolClass] = target;
+        return target;
+    }
+
+    private void resetCache() {
+        stateIds.clear();
+        states.clear();
+        acceptStates = new BitSet();
+        next = new int[Math.max(symbolCount, 1) * 16];
+        cacheBytes = 0;
+        workspace.add(nfa.startState);
+        workspace.closeOverEpsilon();
+        startState = addState(workspace.toStateSet(workspace.hash()));
+        workspace.clear();
+    }
+
+    private boolean isAccepting(NFAStateSet set) {
+        if (nfa.acceptPatterns == null) return set.contains(nfa.acceptState);
+        for (int state : set.states) {
+            if (nfa.acceptPatterns[state] >= 0) return true;
+        }
+        return false;
+    }
+
+    private int addState(NFAStateSet set) {
+        int id = states.size();
+        states.add(set);
+        stateIds.put(set, id);
+        if (isAccepting(set)) acceptStates.set(id);
+        int needed = (id + 1) * symbolCount;
+        if (needed > next.length) {
+            int oldLength = next.length;
+            next = Arrays.copyOf(next, Math.max(needed, oldLength * 2));
+            Arrays.fill(next, oldLength, next.length, UNKNOWN);
+        }
+        Arrays.fill(next, id * symbolCount, needed, UNKNOWN);
+        cacheBytes += bytesFor(set);
+        return id;
+    }
+
+    private long bytesFor(NFAStateSet set) {
+        return STATE_OVERHEAD_BYTES + 4L * set.size() + 4L * symbolCount;
+    }
+}
+
+// --- Part 3: Compiled DFA matching ---
+
+/**
+ * CompiledDFA is the matching form of a DFA: a dense transition table indexed by
+ * state * classCount + classOf(ch) and an accept bitset. State 0 is the dead state,
+ * which every missing transition leads to. Matching allocates nothing.
+ */
+final class CompiledDFA {
+    static final int DEAD = 0;
+
+    final CharClassMap classMap;
+    final int classCount;
+    final int stateCount;
+    final int startState;
+    final int[] next;
+    final long[] accept;
+    int[] acceptLabel;  // multi-pattern only: label index per state, or -1
+    int[][] labelTable; // multi-pattern only: sorted pattern ids per label
+
+    CompiledDFA(CharClassMap classMap, int stateCount, int startState, int[] next, long[] accept) {
+        this.classMap = classMap;
+        this.classCount = classMap.classCount;
+        this.stateCount = stateCount;
+        this.startState = startState;
+        this.next = next;
+        this.accept = accept;
+    }
+
+    /** Compiles a DFA; DFA state id i becomes state i + 1. */
+    static CompiledDFA compile(DFA dfa) {
+        CharClassMap classMap = dfa.classMap;
+        int stateCount = Math.max(dfa.startStateId, 0) + 2;
+        for (int id : dfa.acceptStateIds) stateCount = Math.max(stateCount, id + 2);
+        for (Map.Entry<Integer, Map<Integer, Integer>> e : dfa.transitions.entrySet()) {
+            stateCount = Math.max(stateCount, e.getKey() + 2);
+            for (int to : e.getValue().values()) stateCount = Math.max(stateCount, to + 2);
+        }
+        int classCount = classMap.classCount;
+        int[] next = new int[stateCount * classCount];
+        dfa.transitions.forEach((from, transMap) -> transMap.forEach((symbolClass, to) ->
+                next[(from + 1) * classCount + symbolClass] = to + 1));
+        long[] accept = new long[(stateCount + 63) >>> 6];
+        for (int id : dfa.acceptStateIds) accept[(id + 1) >>> 6] |= 1L << (id + 1);
+        int startState = dfa.startStateId == -1 ? DEAD : dfa.startStateId + 1;
+        CompiledDFA compiled = new CompiledDFA(classMap, stateCount, startState, next, accept);
+        if (!dfa.labelTable.isEmpty()) {
+            compiled.labelTable = dfa.labelTable.toArray(new int[0][]);
+            compiled.acceptLabel = new int[stateCount];
+            Arrays.fill(compiled.acceptLabel, -1);
+            dfa.acceptLabels.forEach((id, label) -> compiled.acceptLabel[id + 1] = label);
+        }
+        return compiled;
+    }
+
+    public boolean isAccepting(int state) {
+        return (accept[state >>> 6] & (1L << state)) != 0;
+    }
+
+    public int step(int state, char c) {
+        return next[state * classCount + classMap.classOf(c)];
+    }
+
+    public boolean matches(CharSequence input) {
+        int state = startState;
+        for (int i = 0, n = input.length(); i < n; i++) {
+            state = next[state * classCount + classMap.classOf(input.charAt(i))];
+            if (state == DEAD) return false;
+        }
+        return isAccepting(state);
+    }
+
+    /**
+     * Multi-pattern DFAs: runs the input once and returns the label index of the patterns
+     * it matches (see labelTable), or -1 if it matches none. Allocates nothing.
+     */
+    public int matchLabel(CharSequence input) {
+        int state = startState;
+        for (int i = 0, n = input.length(); i < n; i++) {
+            state = next[state * classCount + classMap.classOf(input.charAt(i))];
+            if (state == DEAD) return -1;
+        }
+        // A union DFA whose patterns accept nothing has no labels, so no table either.
+        return acceptLabel == null ? -1 : acceptLabel[state];
+    }
+
+    /**
+     * Whether two compiled DFAs accept the same language, by a breadth-first walk of
+     * their product. One char per elementary interval of both class maps is enough,
+     * since every char in such an interval behaves alike in both.
+     */
+    static boolean equivalent(CompiledDFA a, CompiledDFA b) {
+        TreeSet<Character> probes = new TreeSet<>();
+        for (CompiledDFA dfa : new CompiledDFA[] {a, b}) {
+            for (int cls = 0; cls < dfa.classCount; cls++) {
+                int[] ranges = dfa.classMap.rangesOf(cls);
+                for (int i = 0; i < ranges.length; i += 2) probes.add((char) ranges[i]);
+            }
+        }
+        Set<Long> seen = new HashSet<>();
+        Deque<long[]> pending = new ArrayDeque<>();
+        pending.add(new long[] {a.startState, b.startState});
+        while (!pending.isEmpty()) {
+            long[] pair = pending.poll();
+            int x = (int) pair[0];
+            int y = (int) pair[1];
+            if (!seen.add(((long) x << 32) | y)) continue;
+            if (a.isAccepting(x) != b.isAccepting(y)) return false;
+            for (char c : probes) pending.add(new long[] {a.step(x, c), b.step(y, c)});
+        }
+        return true;
+    }
+
+    /** Returns the end of the longest match starting at from, or -1 if none starts there. */
+    public int longestMatch(CharSequence input, int from) {
+        int state = startState;
+        int end = isAccepting(state) ? from : -1;
+        for (int i = from, n = input.length(); i < n; i++) {
+            state = next[state * classCount + classMap.classOf(input.charAt(i))];
+            if (state == DEAD) break;
+            if (isAccepting(state)) end = i + 1;
+        }
+        return end;
+    }
+
+    public boolean matches(char[] input, int from, int to) {
+        int state = startState;
+        for (int i = from; i < to; i++) {
+            state = next[state * classCount + classMap.classOf(input[i])];
+            if (state == DEAD) return false;
+        }
+        return isAccepting(state);
+    }
+}
+
+/**
+ * StreamMatcher runs a CompiledDFA over input that arrives in chunks. The only state
+ * kept between chunks is the current DFA state (plus a partial UTF-8 sequence when
+ * decoding bytes), so memory is constant however long the stream is. Chunks are read
+ * in place, never copied, and feeding stops early once the dead state is reached since
+ * no further input can lead to a match.
+ */
+final class StreamMatcher {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAP_REGION = 1 << 30;
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final CompiledDFA dfa;
+    private int state;
+
+    // Partial UTF-8 sequence carried across ByteBuffer chunks.
+    private int utf8Pending;   // continuation bytes still expected
+    private int utf8CodePoint;
+    private int utf8Lower;     // range the next continuation byte must fall in; the
+    private int utf8Upper;     // second byte's range rules out overlongs and > U+10FFFF
+
+    StreamMatcher(CompiledDFA dfa) {
+        this.dfa = dfa;
+        this.state = dfa.startState;
+    }
+
+    /** Starts over at the beginning of a new stream. */
+    public void reset() {
+        state = dfa.startState;
+        utf8Pending = 0;
+    }
+
+    /** True once no continuation of the input fed so far can match. */
+    public boolean isDead() {
+        return state == CompiledDFA.DEAD;
+    }
+
+    /** Whether the input fed so far, taken as the whole stream, matches. */
+    public boolean isAccepting() {
+        return utf8Pending == 0 ? dfa.isAccepting(state) : dfa.isAccepting(dfa.step(state, REPLACEMENT));
+    }
+
+    /** Ends the stream, decoding any truncated UTF-8 sequence as U+FFFD, and returns the result. */
+    public boolean finish() {
+        if (utf8Pending != 0) {
+            utf8Pending = 0;
+            feedChar(REPLACEMENT);
+        }
+        return dfa.isAccepting(state);
+    }
+
+    /** Feeds chars; returns false once the matcher is dead and further input can be skipped. */
+    public boolean feed(CharSequence chunk) {
+        for (int i = 0, n = chunk.length(); i < n && state != CompiledDFA.DEAD; i++) {
+            state = dfa.step(state, chunk.charAt(i));
+        }
+        return state != CompiledDFA.DEAD;
+    }
+
+    public boolean feed(char[] chunk, int from, int to) {
+        for (int i = from; i < to && state != CompiledDFA.DEAD; i++) {
+            state = dfa.step(state, chunk[i]);
+        }
+        return state != CompiledDFA.DEAD;
+    }
+
+    /** Feeds the buffer's remaining chars and consumes them, heap or direct alike. */
+    public boolean feed(CharBuffer chunk) {
+        int limit = chunk.limit();
+        for (int i = chunk.position(); i < limit && state != CompiledDFA.DEAD; i++) {
+            state = dfa.step(state, chunk.get(i));
+        }
+        chunk.position(limit);
+        return state != CompiledDFA.DEAD;
+    }
+
+    /** Feeds the buffer's remaining bytes as ISO-8859-1 (one byte per char) and consumes them. */
+    public boolean feedLatin1(ByteBuffer chunk) {
+        int limit = chunk.limit();
+        for (int i = chunk.position(); i < limit && state != CompiledDFA.DEAD; i++) {
+            state = dfa.step(state, (char) (chunk.get(i) & 0xFF));
+        }
+        chunk.position(limit);
+        return state != CompiledDFA.DEAD;
+    }
+
+    /** Feeds the buffer's remaining bytes as US-ASCII, bytes above 0x7F as U+FFFD, and consumes them. */
+    public boolean feedAscii(ByteBuffer chunk) {
+        int limit = chunk.limit();
+        for (int i = chunk.position(); i < limit && state != CompiledDFA.DEAD; i++) {
+            byte b = chunk.get(i);
+            state = dfa.step(state, b >= 0 ? (char) b : REPLACEMENT);
+        }
+        chunk.position(limit);
+        return state != CompiledDFA.DEAD;
+    }
+
+    /**
+     * Feeds the buffer's remaining bytes as UTF-8 and consumes them. A sequence split
+     * across chunks is completed by the next call, and code points above U+FFFF are fed
+     * as surrogate pairs like Java strings hold them. Malformed input becomes U+FFFD the
+     * way the JDK decoder replaces it: one per maximal valid prefix of a sequence, or per
+     * stray byte, so {@code C0 80} is two replacements, as in {@code new String(bytes, UTF_8)}.
+     */
+    public boolean feedUtf8(ByteBuffer chunk) {
+        int limit = chunk.limit();
+        for (int i = chunk.position(); i < limit && state != CompiledDFA.DEAD; i++) {
+            decodeUtf8(chunk.get(i) & 0xFF);
+        }
+        chunk.position(limit);
+        return state != CompiledDFA.DEAD;
+    }
+
+    private void decodeUtf8(int b) {
+        if (utf8Pending != 0) {
+            if (b >= utf8Lower && b <= utf8Upper) {
+                utf8CodePoint = (utf8CodePoint << 6) | (b & 0x3F);
+                utf8Lower = 0x80;
+                utf8Upper = 0xBF;
+                if (--utf8Pending == 0) feedCodePoint(utf8CodePoint);
+                return;
+            }
+            utf8Pending = 0;
+            feedChar(REPLACEMENT); // the bytes so far are one malformed sequence; b starts over below
+        }
+        if (b < 0x80) {
+            feedChar((char) b);
+        } else if (b >= 0xC2 && b <= 0xDF) {
+            startSequence(b & 0x1F, 1, 0x80, 0xBF);
+        } else if (b >= 0xE0 && b <= 0xEF) {
+            startSequence(b & 0x0F, 2, b == 0xE0 ? 0xA0 : 0x80, 0xBF);
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            startSequence(b & 0x07, 3, b == 0xF0 ? 0x90 : 0x80, b == 0xF4 ? 0x8F : 0xBF);
+        } else {
+            feedChar(REPLACEMENT); // stray continuation, or a lead byte no valid sequence starts with
+        }
+    }
+
+    private void startSequence(int bits, int continuationBytes, int lower, int upper) {
+        utf8CodePoint = bits;
+        utf8Pending = continuationBytes;
+        utf8Lower = lower;
+        utf8Upper = upper;
+    }
+
+    private void feedCodePoint(int codePoint) {
+        if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            feedChar(REPLACEMENT); // like the JDK, an encoded surrogate is one malformed sequence
+        } else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            feedChar(Character.highSurrogate(codePoint));
+            feedChar(Character.lowSurrogate(codePoint));
+        } else {
+            feedChar((char) codePoint);
+        }
+    }
+
+    private void feedChar(char c) {
+        if (state != CompiledDFA.DEAD) state = dfa.step(state, c);
+    }
+
+    /** Matches everything the reader yields through one reused buffer; does not close it. */
+    public static boolean matches(CompiledDFA dfa, Reader reader) throws IOException {
+        StreamMatcher matcher = new StreamMatcher(dfa);
+        char[] buffer = new char[BUFFER_SIZE];
+        for (int n; (n = reader.read(buffer)) != -1; ) {
+            if (!matcher.feed(buffer, 0, n)) return false;
+        }
+        return matcher.finish();
+    }
+
+    /**
+     * Matches a file by memory-mapping it region by region, so the file is never read
+     * into the heap. The charset must be UTF-8 or one of the single-byte ISO-8859-1 / US-ASCII;
+     * the file is decoded exactly as {@code new String(bytes, charset)} would decode it.
+     */
+    public static boolean matches(CompiledDFA dfa, Path file, Charset charset) throws IOException {
+        boolean utf8 = charset.equals(StandardCharsets.UTF_8);
+        boolean ascii = charset.equals(StandardCharsets.US_ASCII);
+        if (!utf8 && !ascii && !charset.equals(StandardCharsets.ISO_8859_1)) {
+            throw new IllegalArgumentException("Unsupported charset for mapped matching: " + charset);
+        }
+        StreamMatcher matcher = new StreamMatcher(dfa);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long offset = 0; offset < size; offset += MAP_REGION) {
+                ByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_REGION, size - offset));
+                boolean live = utf8 ? matcher.feedUtf8(region) : ascii ? matcher.feedAscii(region) : matcher.feedLatin1(region);
+                if (!live) return false;
+            }
+        }
+        return matcher.finish();
+    }
+}
+
+/** A match found by a search: the chars in [start, end) of the searched text. */
+final class Match {
+    final int start;
+    final int end;
+
+    Match(int start, int end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Match && ((Match) o).start == start && ((Match) o).end == end;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * start + end;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + start + ", " + end + ")";
+    }
+}
+
+/**
+ * Searcher finds leftmost-longest matches of one pattern inside a text.
+ *
+ * A reverse DFA for .*R reversed is run once from the end of the text back to the
+ * search origin; it accepts exactly at the positions where a match starts, so the
+ * leftmost start is known without trying every offset. When every match begins with
+ * the same literal prefix, indexOf first skips the origin ahead to the first place the
+ * prefix occurs, so the reverse pass never covers text before it. The longest match
+ * from the start is then found with the forward DFA, stopping at the dead state.
+ * Finding one match is linear in the text after the origin.
+ *
+ * In findAll, a forward scan may run well past the end of its match before dying, and
+ * the next scan then starts inside text already scanned. Where that happens the scans
+ * are memoized by (position, DFA state), so each pair is stepped from at most once and
+ * findAll stays O(n x forward DFA states) rather than O(n^2).
+ */
+final class Searcher {
+    private static final int MAX_PREFIX = 64;
+
+    final CompiledDFA forward;
+    final String prefix;          // literal every match starts with; may be empty
+    private final CompiledDFA reverse;
+
+    Searcher(NFA nfa, CompiledDFA forward) {
+        if (nfa.acceptPatterns != null) {
+            throw new IllegalArgumentException("Search needs a single-pattern NFA");
+        }
+        this.forward = forward;
+        this.prefix = literalPrefix(nfa);
+        this.reverse = DFAMinimizer.minimize(DFAConverter.convert(reverseOfAnyPrefixed(nfa))).compile();
+    }
+
+    /** The leftmost-longest match starting at or after from, or null if there is none. */
+    public Match find(CharSequence text, int from) {
+        if (from < 0 || from > text.length()) {
+            throw new IllegalArgumentException("Search origin " + from + " outside text of length " + text.length());
+        }
+        from = skipToPrefix(text, from);
+        if (from < 0) return null;
+        int start = matchStarts(text, from).nextSetBit(from);
+        return start < 0 ? null : new Match(start, forward.longestMatch(text, start));
+    }
+
+    /**
+     * Every non-overlapping leftmost-longest match, left to right. After an empty match
+     * the search resumes one char further on, so it always makes progress.
+     */
+    public List<Match> findAll(CharSequence text) {
+        List<Match> matches = new ArrayList<>();
+        int first = skipToPrefix(text, 0);
+        if (first < 0) return matches;
+        BitSet starts = matchStarts(text, first);
+        ScanMemo memo = new ScanMemo();
+        for (int from = first; from <= text.length(); ) {
+            int start = starts.nextSetBit(from);
+            if (start < 0) break;
+            Match match = new Match(start, longestMatch(text, start, memo));
+            matches.add(match);
+            from = match.end > match.start ? match.end : match.end + 1;
+        }
+        return matches;
+    }
+
+    /**
+     * CompiledDFA.longestMatch, sharing work between scans that overlap. A scan starting
+     * before the furthest position scanned so far records, for each (position, state)
+     * it passes, the longest match end reachable from there, and stops as soon as it
+     * reaches a pair already recorded. Scans that start beyond it run plainly and reset
+     * the memo, so text scanned only once pays for nothing but the bookkeeping branch.
+     */
+    private int longestMatch(CharSequence text, int start, ScanMemo memo) {
+        boolean record = start < memo.scannedTo;
+        if (!record) memo.clear();
+        int n = text.length();
+        int state = forward.startState;
+        int end = -1;
+        int position = start;
+        int known = ScanMemo.UNKNOWN;
+        memo.trajectoryLength = 0;
+        while (true) {
+            if (record) {
+                known = memo.get(position, state);
+                if (known != ScanMemo.UNKNOWN) break;
+                memo.addToTrajectory(state);
+            } else if (forward.isAccepting(state)) {
+                end = position;
+            }
+            if (position == n) break;
+            int next = forward.step(state, text.charAt(position));
+            if (next == CompiledDFA.DEAD) break;
+            state = next;
+            position++;
+        }
+        memo.scannedTo = Math.max(memo.scannedTo, position + 1);
+        if (!record) return end;
+        end = known == ScanMemo.UNKNOWN ? -1 : known;
+        for (int i = memo.trajectoryLength - 1; i >= 0; i--) {
+            int visited = memo.trajectory[i];
+            if (end < 0 && forward.isAccepting(visited)) end = start + i;
+            memo.put(start + i, visited, end);
+        }
+        return end;
+    }
+
+    /** Longest match end from each recorded (position, forward state) pair; open addressing. */
+    private static final class ScanMemo {
+        static final int UNKNOWN = Integer.MIN_VALUE;
+        private static final int INITIAL_CAPACITY = 64;
+
+        int scannedTo;        // one past the furthest position any scan has reached
+        int[] trajectory = new int[INITIAL_CAPACITY]; // states of the scan in progress
+        int trajectoryLength;
+        private long[] keys;  // position << 32 | state, or -1 for an empty slot
+        private int[] ends;
+        private int size;
+
+        ScanMemo() {
+            clear();
+        }
+
+        void clear() {
+            if (size == 0 && keys != null) return;
+            keys = new long[INITIAL_CAPACITY];
+            Arrays.fill(keys, -1L);
+            ends = new int[INITIAL_CAPACITY];
+            size = 0;
+        }
+
+        void addToTrajectory(int state) {
+            if (trajectoryLength == trajectory.length) trajectory = Arrays.copyOf(trajectory, 2 * trajectoryLength);
+            trajectory[trajectoryLength++] = state;
+        }
+
+        int get(int position, int state) {
+            long key = (long) position << 32 | state;
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; keys[slot] != -1L; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) return ends[slot];
+            }
+            return UNKNOWN;
+        }
+
+        void put(int position, int state, int end) {
+            if (2 * (size + 1) > keys.length) resize();
+            long key = (long) position << 32 | state;
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != -1L && keys[slot] != key) slot = (slot + 1) & mask;
+            if (keys[slot] == -1L) size++;
+            keys[slot] = key;
+            ends[slot] = end;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldEnds = ends;
+            keys = new long[2 * oldKeys.length];
+            Arrays.fill(keys, -1L);
+            ends = new int[keys.length];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != -1L) put((int) (oldKeys[i] >>> 32), (int) oldKeys[i], oldEnds[i]);
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /** The first position at or after from where the literal prefix occurs, or -1. */
+    private int skipToPrefix(CharSequence text, int from) {
+        return prefix.isEmpty() ? from : indexOf(text, prefix, from);
+    }
+
+    /** Runs the reverse DFA from the end of the text down to from, marking where matches start. */
+    private BitSet matchStarts(CharSequence text, int from) {
+        int n = text.length();
+        BitSet starts = new BitSet(n + 1);
+        int state = reverse.startState;
+        if (reverse.isAccepting(state)) starts.set(n);
+        for (int i = n - 1; i >= from; i--) {
+            state = reverse.step(state, text.charAt(i));
+            if (reverse.isAccepting(state)) starts.set(i);
+        }
+        return starts;
+    }
+
+    private static int indexOf(CharSequence text, String literal, int from) {
+        if (text instanceof String) return ((String) text).indexOf(literal, from);
+        char first = literal.charAt(0);
+        for (int i = from, last = text.length() - literal.length(); i <= last; i++) {
+            if (text.charAt(i) != first) continue;
+            int k = 1;
+            while (k < literal.length() && text.charAt(i + k) == literal.charAt(k)) k++;
+            if (k == literal.length()) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The longest literal every accepted string starts with: follows the NFA from its
+     * start while all live transitions share one single-char class and accepting is not
+     * yet possible.
+     */
+    static String literalPrefix(NFA nfa) {
+        nfa.ensureIndexed();
+        int classCount = nfa.classMap.classCount;
+        SubsetWorkspace workspace = new SubsetWorkspace(nfa);
+        workspace.add(nfa.startState);
+        workspace.closeOverEpsilon();
+        NFAStateSet current = workspace.toStateSet(workspace.hash());
+        StringBuilder prefix = new StringBuilder();
+        while (prefix.length() < MAX_PREFIX && !current.contains(nfa.acceptState)) {
+            int onlyClass = -1;
+            for (int state : current.states) {
+                for (int cls = 0; cls < classCount; cls++) {
+                    int key = state * classCount + cls;
+                    if (nfa.symbolOffsets[key] == nfa.symbolOffsets[key + 1]) continue;
+                    if (onlyClass >= 0 && onlyClass != cls) return prefix.toString();
+                    onlyClass = cls;
+                }
+            }
+            if (onlyClass < 0) break;
+            int[] ranges = nfa.classMap.rangesOf(onlyClass);
+            if (ranges.length != 2 || ranges[0] != ranges[1]) break;
+            prefix.append((char) ranges[0]);
+            workspace.clear();
+            workspace.addMove(current, onlyClass);
+            workspace.closeOverEpsilon();
+            current = workspace.toStateSet(workspace.hash());
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * An NFA for .* followed by the reverse of the given NFA's language: every
+     * transition flipped, the old accept state as entry behind an any-char loop.
+     */
+    static NFA reverseOfAnyPrefixed(NFA nfa) {
+        NFA reversed = new NFA();
+        reversed.addAllStates(nfa.allStates);
+        for (NFATransition t : nfa.transitions) {
+            reversed.addTransition(new NFATransition(t.toState, t.label, t.fromState));
+        }
+        int anyLoop = reversed.getNewStateId();
+        reversed.addTransition(new NFATransition(anyLoop, CharSet.ANY, anyLoop));
+        reversed.addTransition(new NFATransition(anyLoop, null, nfa.acceptState));
+        reversed.startState = anyLoop;
+        reversed.acceptState = nfa.startState;
+        reversed.buildIndex();
+        return reversed;
+    }
+}
+
+/**
+ * DFABundle is the on-disk form of one or more compiled DFAs, laid out so a mapped
+ * file can be matched against in place (see MappedDFA). Little-endian; every section
+ * starts on an 8-byte boundary.
+ *
+ * Bundle header: magic "RXDF", version, entry count, reserved (u32 each), then one u64
+ * offset per entry. Each entry: classCount, stateCount, startState, intervalCount (u32),
+ * the class of each Latin-1 char (256 x u32), the interval starts (u16) and classes (u32)
+ * of the class map, the transition table (stateCount x classCount x u32, state 0 dead),
+ * and the accept bitset (u64 words).
+ *
+ * The TuringMachine is not stored: fromDFA derives it one-to-one from these tables, so
+ * the mapped DFA gives the same answers without it.
+ */
+final class DFABundle {
+    static final int MAGIC = 0x46445852; // "RXDF"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int ENTRY_HEADER_BYTES = 16;
+
+    private DFABundle() {
+    }
+
+    /**
+     * Writes the bundle to a temporary file next to the target and renames it into place,
+     * so JVMs that have the old file mapped keep reading it intact and never see a
+     * truncated or half-written bundle.
+     */
+    public static void write(List<CompiledDFA> dfas, Path file) throws IOException {
+        ByteBuffer bytes = encode(dfas);
+        Path target = file.toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName() + ".", ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (bytes.hasRemaining()) channel.write(bytes);
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public static ByteBuffer encode(List<CompiledDFA> dfas) {
+        long[] offsets = new long[dfas.size()];
+        long size = align(HEADER_BYTES + 8L * dfas.size());
+        for (int i = 0; i < dfas.size(); i++) {
+            CompiledDFA dfa = dfas.get(i);
+            if (dfa.labelTable != null) {
+                throw new IllegalArgumentException("Multi-pattern labels cannot be stored in a bundle");
+            }
+            offsets[i] = size;
+            size += entryBytes(dfa.classCount, dfa.stateCount, dfa.classMap.intervalStarts.length);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bundle of " + size + " bytes exceeds the 2 GiB limit of one mapping");
+        }
+        ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(dfas.size()).putInt(0);
+        for (long offset : offsets) out.putLong(offset);
+        for (int i = 0; i < dfas.size(); i++) {
+            CompiledDFA dfa = dfas.get(i);
+            CharClassMap classMap = dfa.classMap;
+            int intervals = classMap.intervalStarts.length;
+            out.position((int) offsets[i]);
+            out.putInt(dfa.classCount).putInt(dfa.stateCount).putInt(dfa.startState).putInt(intervals);
+            for (int cls : classMap.latin1Classes) out.putInt(cls);
+            for (char start : classMap.intervalStarts) out.putChar(start);
+            out.position(align4(out.position()));
+            for (int cls : classMap.intervalClasses) out.putInt(cls);
+            out.position((int) align(out.position()));
+            for (int target : dfa.next) out.putInt(target);
+            out.position((int) align(out.position()));
+            for (long word : dfa.accept) out.putLong(word);
+        }
+        out.position(0);
+        return out;
+    }
+
+    /** Maps a bundle file read-only; matching reads straight from the page cache, shared by every JVM on the host. */
+    public static List<MappedDFA> map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Bundle " + file + " exceeds the 2 GiB limit of one mapping");
+            }
+            return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Checks the header and section bounds of every entry; transition targets are not scanned. */
+    public static List<MappedDFA> load(ByteBuffer bundle) {
+        ByteBuffer bytes = bundle.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.limit() < HEADER_BYTES || bytes.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a DFA bundle");
+        }
+        if (bytes.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported DFA bundle version " + bytes.getInt(4) + ", expected " + VERSION);
+        }
+        int count = bytes.getInt(8);
+        if (count < 0 || HEADER_BYTES + 8L * count > bytes.limit()) {
+            throw new IllegalArgumentException("Corrupt DFA bundle: bad entry count " + count);
+        }
+        List<MappedDFA> dfas = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long offset = bytes.getLong(HEADER_BYTES + 8 * i);
+            if (offset < 0 || offset + ENTRY_HEADER_BYTES > bytes.limit()) {
+                throw new IllegalArgumentException("Corrupt DFA bundle: entry " + i + " out of bounds");
+            }
+            int base = (int) offset;
+            int classCount = bytes.getInt(base);
+            int stateCount = bytes.getInt(base + 4);
+            int startState = bytes.getInt(base + 8);
+            int intervals = bytes.getInt(base + 12);
+            if (classCount <= 0 || stateCount <= 0 || intervals <= 0 || startState < 0 || startState >= stateCount
+                    || offset + entryBytes(classCount, stateCount, intervals) > bytes.limit()) {
+                throw new IllegalArgumentException("Corrupt DFA bundle: entry " + i + " has inconsistent sizes");
+            }
+            dfas.add(new MappedDFA(bytes, base, classCount, stateCount, startState, intervals));
+        }
+        return dfas;
+    }
+
+    static long entryBytes(int classCount, int stateCount, int intervals) {
+        long size = ENTRY_HEADER_BYTES + 4 * 256;
+        size = align4(size + 2L * intervals);
+        size = align(size + 4L * intervals);
+        size = align(size + 4L * stateCount * classCount);
+        return size + 8L * ((stateCount + 63) >>> 6);
+    }
+
+    static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    static int align4(long offset) {
+        return (int) ((offset + 3) & ~3L);
+    }
+}
+
+/**
+ * MappedDFA matches directly against one entry of a DFABundle buffer, usually a mapped
+ * file. Nothing is copied onto the heap: the class map and transition table are read
+ * with absolute gets, so loading costs only the header checks.
+ */
+final class MappedDFA {
+    private final ByteBuffer bytes;
+    final int classCount;
+    final int stateCount;
+    final int startState;
+    private final int intervals;
+    private final int latin1Offset;
+    private final int intervalStartsOffset;
+    private final int intervalClassesOffset;
+    private final int nextOffset;
+    private final int acceptOffset;
+
+    MappedDFA(ByteBuffer bytes, int base, int classCount, int stateCount, int startState, int intervals) {
+        this.bytes = bytes;
+        this.classCount = classCount;
+        this.stateCount = stateCount;
+        this.startState = startState;
+        this.intervals = intervals;
+        this.latin1Offset = base + DFABundle.ENTRY_HEADER_BYTES;
+        this.intervalStartsOffset = latin1Offset + 4 * 256;
+        this.intervalClassesOffset = DFABundle.align4(intervalStartsOffset + 2L * intervals);
+        this.nextOffset = (int) DFABundle.align(intervalClassesOffset + 4L * intervals);
+        this.acceptOffset = (int) DFABundle.align(nextOffset + 4L * stateCount * classCount);
+    }
+
+    public int classOf(char c) {
+        if (c < 256) return bytes.getInt(latin1Offset + 4 * c);
+        int lo = 0;
+        int hi = intervals - 1;
+        while (lo < hi) { // last interval starting at or before c
+            int mid = (lo + hi + 1) >>> 1;
+            if (bytes.getChar(intervalStartsOffset + 2 * mid) <= c) lo = mid;
+            else hi = mid - 1;
+        }
+        return bytes.getInt(intervalClassesOffset + 4 * lo);
+    }
+
+    public boolean isAccepting(int state) {
+        return (bytes.getLong(acceptOffset + 8 * (state >>> 6)) & (1L << state)) != 0;
+    }
+
+    public int step(int state, char c) {
+        return bytes.getInt(nextOffset + 4 * (state * classCount + classOf(c)));
+    }
+
+    public boolean matches(CharSequence input) {
+        int state = startState;
+        for (int i = 0, n = input.length(); i < n; i++) {
+            state = step(state, input.charAt(i));
+            if (state == CompiledDFA.DEAD) return false;
+        }
+        return isAccepting(state);
+    }
+}
+
+/**
+ * NFASimulator matches by Thompson simulation straight over the indexed NFA, for
+ * patterns whose DFA was too large to build. The live state set is a list plus a
+ * membership bitset, advanced one char at a time, so matching is O(input * NFA size)
+ * with no backtracking and memory stays O(NFA size).
+ */
+final class NFASimulator {
+    private final NFA nfa;
+
+    NFASimulator(NFA nfa) {
+        nfa.ensureIndexed();
+        this.nfa = nfa;
+    }
+
+    /** Live NFA states with the start offset of the thread that reached each one first. */
+    private static final class ThreadList {
+        final int[] states;
+        final int[] starts; // indexed by NFA state
+        final long[] marks;
+        int size;
+
+        ThreadList(int stateCount) {
+            states = new int[stateCount];
+            starts = new int[stateCount];
+            marks = new long[(stateCount + 63) >>> 6];
+        }
+
+        boolean contains(int state) {
+            return (marks[state >>> 6] & (1L << state)) != 0;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) marks[states[i] >>> 6] = 0;
+            size = 0;
+        }
+    }
+
+    public boolean matches(CharSequence input) {
+        ThreadList current = new ThreadList(nfa.stateCount);
+        ThreadList next = new ThreadList(nfa.stateCount);
+        int[] stack = new int[nfa.stateCount];
+        addThread(current, nfa.startState, 0, stack);
+        for (int i = 0, n = input.length(); i < n && current.size > 0; i++) {
+            step(current, next, input.charAt(i), -1, stack);
+            ThreadList swap = current;
+            current = next;
+            next = swap;
+        }
+        return current.contains(nfa.acceptState);
+    }
+
+    /**
+     * The leftmost-longest match starting at or after from, or null, in one pass. The
+     * thread lists stay ordered by start offset, so the first thread to reach a state
+     * has the leftmost start. Once a match is seen no new threads start, and threads
+     * that started after it are dropped; an earlier-starting thread that accepts later
+     * still replaces it.
+     */
+    public Match find(CharSequence text, int from) {
+        if (from < 0 || from > text.length()) {
+            throw new IllegalArgumentException("Search origin " + from + " outside text of length " + text.length());
+        }
+        ThreadList current = new ThreadList(nfa.stateCount);
+        ThreadList next = new ThreadList(nfa.stateCount);
+        int[] stack = new int[nfa.stateCount];
+        int matchStart = -1;
+        int matchEnd = -1;
+        for (int i = from, n = text.length(); ; i++) {
+            if (matchStart < 0) addThread(current, nfa.startState, i, stack); // a new thread starts here
+            if (current.contains(nfa.acceptState)) {
+                int start = current.starts[nfa.acceptState];
+                if (matchStart < 0 || start <= matchStart) {
+                    matchStart = start;
+                    matchEnd = i;
+                }
+            }
+            if (i == n || (matchStart >= 0 && current.size == 0)) break;
+            step(current, next, text.charAt(i), matchStart, stack);
+            ThreadList swap = current;
+            current = next;
+            next = swap;
+        }
+        return matchStart < 0 ? null : new Match(matchStart, matchEnd);
+    }
+
+    /** Advances every thread over c; with maxStart >= 0, threads that started after it are dropped. */
+    private void step(ThreadList current, ThreadList next, char c, int maxStart, int[] stack) {
+        next.clear();
+        int classCount = nfa.classMap.classCount;
+        int symbolClass = nfa.classMap.classOf(c);
+        for (int t = 0; t < current.size; t++) {
+            int state = current.states[t];
+            int start = current.starts[state];
+            if (maxStart >= 0 && start > maxStart) continue;
+            int key = state * classCount + symbolClass;
+            for (int i = nfa.symbolOffsets[key]; i < nfa.symbolOffsets[key + 1]; i++) {
+                addThread(next, nfa.symbolTargets[i], start, stack);
+            }
+        }
+        current.clear();
+    }
+
+    /** Adds a state and its epsilon closure, keeping existing entries (which started earlier). */
+    private void addThread(ThreadList list, int state, int start, int[] stack) {
+        if (list.contains(state)) return;
+        int top = 0;
+        stack[top++] = state;
+        list.marks[state >>> 6] |= 1L << state;
+        while (top > 0) {
+            int s = stack[--top];
+            list.states[list.size++] = s;
+            list.starts[s] = start;
+            for (int i = nfa.epsilonOffsets[s]; i < nfa.epsilonOffsets[s + 1]; i++) {
+                int target = nfa.epsilonTargets[i];
+                if (list.contains(target)) continue;
+                list.marks[target >>> 6] |= 1L << target;
+                stack[top++] = target;
+            }
+        }
+    }
+}
+
+/**
+ * BatchMatcher matches many inputs against one CompiledDFA and returns the results as
+ * a BitSet (bit i set when input i matches). The table is immutable, so it is shared by
+ * every worker of a fork-join pool. Inputs are split into ranges aligned to 64 so each
+ * worker writes whole words of the result without synchronisation.
+ *
+ * In interleaved mode each worker advances LANES inputs through the table in lockstep,
+ * so the table loads of different inputs are in flight together. That hides memory
+ * latency when the table does not fit in cache; for small tables plain mode is faster,
+ * so by default it is only chosen for tables over INTERLEAVE_TABLE_BYTES.
+ */
+final class BatchMatcher {
+    static final int LANES = 4;
+    static final long INTERLEAVE_TABLE_BYTES = 256 * 1024; // about a per-core L2
+    private static final int LEAF_SIZE = 4096; // inputs per task; a multiple of 64
+
+    private final CompiledDFA dfa;
+    private final ForkJoinPool pool;
+    private final boolean interleaved;
+
+    BatchMatcher(CompiledDFA dfa) {
+        this(dfa, ForkJoinPool.commonPool(), 4L * dfa.next.length > INTERLEAVE_TABLE_BYTES);
+    }
+
+    BatchMatcher(CompiledDFA dfa, ForkJoinPool pool, boolean interleaved) {
+        this.dfa = dfa;
+        this.pool = pool;
+        this.interleaved = interleaved;
+    }
+
+    public BitSet matchAll(CharSequence[] inputs) {
+        return matchAll(Arrays.asList(inputs));
+    }
+
+    public BitSet matchAll(List<? extends CharSequence> inputs) {
+        if (!(inputs instanceof RandomAccess)) inputs = new ArrayList<>(inputs);
+        long[] words = new long[(inputs.size() + 63) >>> 6];
+        pool.invoke(new RangeTask(inputs, 0, inputs.size(), words));
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Consumes the stream in order, handing it to the pool in fixed-size chunks while
+     * it is still being read, so the stream is never collected into one list.
+     */
+    public BitSet matchAll(Stream<? extends CharSequence> inputs) {
+        List<ForkJoinTask<long[]>> chunks = new ArrayList<>();
+        List<CharSequence> chunk = new ArrayList<>(LEAF_SIZE);
+        Iterator<? extends CharSequence> it = inputs.sequential().iterator();
+        int total = 0;
+        while (it.hasNext()) {
+            chunk.add(it.next());
+            total++;
+            if (chunk.size() == LEAF_SIZE || !it.hasNext()) {
+                List<CharSequence> batch = chunk;
+                chunks.add(pool.submit(() -> {
+                    long[] words = new long[(batch.size() + 63) >>> 6];
+                    matchRange(batch, 0, batch.size(), words);
+                    return words;
+                }));
+                chunk = new ArrayList<>(LEAF_SIZE);
+            }
+        }
+        long[] words = new long[(total + 63) >>> 6];
+        for (int c = 0; c < chunks.size(); c++) {
+            long[] part = chunks.get(c).join();
+            System.arraycopy(part, 0, words, c * (LEAF_SIZE >>> 6), part.length);
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends CharSequence> inputs;
+        private final int from;
+        private final int to;
+        private final long[] words;
+
+        RangeTask(List<? extends CharSequence> inputs, int from, int to, long[] words) {
+            this.inputs = inputs;
+            this.from = from;
+            this.to = to;
+            this.words = words;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                matchRange(inputs, from, to, words);
+                return;
+            }
+            int mid = (from + (to - from) / 2) & ~63; // split on a word boundary
+            invokeAll(new RangeTask(inputs, from, mid, words), new RangeTask(inputs, mid, to, words));
+        }
+    }
+
+    /** Matches inputs[from, to) into words; from must be a multiple of 64. */
+    void matchRange(List<? extends CharSequence> inputs, int from, int to, long[] words) {
+        if (interleaved) {
+            matchInterleaved(inputs, from, to, words);
+            return;
+        }
+        for (int i = from; i < to; i++) {
+            if (dfa.matches(inputs.get(i))) words[i >>> 6] |= 1L << i;
+        }
+    }
+
+    private void matchInterleaved(List<? extends CharSequence> inputs, int from, int to, long[] words) {
+        int[] next = dfa.next;
+        int classCount = dfa.classCount;
+        CharSequence[] lane = new CharSequence[LANES];
+        int[] index = new int[LANES];
+        int[] pos = new int[LANES];
+        int[] state = new int[LANES];
+        int pending = from;
+        int active = 0;
+        for (int l = 0; l < LANES && pending < to; l++, active++) {
+            lane[l] = inputs.get(pending);
+            index[l] = pending++;
+            state[l] = dfa.startState;
+        }
+        while (active > 0) {
+            for (int l = 0; l < LANES; l++) {
+                CharSequence input = lane[l];
+                if (input == null) continue;
+                int p = pos[l];
+                if (p < input.length()) {
+                    int s = next[state[l] * classCount + dfa.classMap.classOf(input.charAt(p))];
+                    state[l] = s;
+                    pos[l] = p + 1;
+                    if (s != CompiledDFA.DEAD) continue;
+                }
+                // This lane's input is done: record it and refill the lane.
+                if (state[l] != CompiledDFA.DEAD && dfa.isAccepting(state[l])) {
+                    words[index[l] >>> 6] |= 1L << index[l];
+                }
+                if (pending < to) {
+                    lane[l] = inputs.get(pending);
+                    index[l] = pending++;
+                    pos[l] = 0;
+                    state[l] = dfa.startState;
+                } else {
+                    lane[l] = null;
+                    active--;
+                }
+            }
+        }
+    }
+}
+
+// --- Part 4: DFA to Turing Machine ---
+
+/**
+ * TMRule represents a transition rule for the Turing Machine. A rule read on a class of
+ * symbols writes back the symbol it read, so symbolToWrite names that class.
+ */
+class TMRule {
+    String nextState;
+    String symbolToWrite; // a symbol, or the class of symbols read (each written back as is)
+    char moveDirection; // 'L', 'R', 'S'
+
+    public TMRule(String nextState, String symbolToWrite, char moveDirection) {
+        this.nextState = nextState;
+        this.symbolToWrite = symbolToWrite;
+        this.moveDirection = moveDirection;
+    }
+
+    @Override
+    public String toString() {
+        return "(to_state=" + nextState + ", write=" + symbolToWrite + ", move=" + moveDirection + ")";
+    }
+}
+
+/**
+ * TuringMachine simulates a DFA.
+ */
+class TuringMachine {
+    private static final String TM_ACCEPT_STATE = "q_accept_tm";
+    private static final String TM_REJECT_STATE = "q_reject_tm";
+    private static final char BLANK_SYMBOL = '_';
+
+    private Set<CharSet> tapeAlphabet = new TreeSet<>(Collections.singleton(CharSet.of(BLANK_SYMBOL)));
+
+    // The machine is the DFA's compiled table plus a shared reject sink. In DFA state d it
+    // moves right into d's successor on the symbol read, writing the symbol back. On the
+    // blank it halts in accept if d accepts, else in reject. A symbol of the alphabet
+    // that d has no transition on (the dead state) halts in reject; any other symbol has
+    // no rule. So no per-rule data is stored, and state names and TMRule objects are
+    // only built by toString.
+    private CompiledDFA dfa;
+    private boolean[] alphabetClass; // per DFA symbol class: inside the DFA's alphabet
+
+    /** Builds the machine over the DFA's own compiled table. */
+    public static TuringMachine fromDFA(DFA dfa) {
+        return fromDFA(dfa, dfa.compile());
+    }
+
+    /** Builds the machine over an already compiled table of the same DFA, sharing it. */
+    public static TuringMachine fromDFA(DFA dfa, CompiledDFA compiled) {
+        Instrumentation.Probe probe = Instrumentation.startStage(null);
+        TuringMachine tm = new TuringMachine();
+        tm.tapeAlphabet.addAll(dfa.alphabet);
+        tm.dfa = compiled;
+        tm.alphabetClass = new boolean[compiled.classCount];
+        for (int c = 0; c < compiled.classCount; c++) {
+            char representative = compiled.classMap.representative(c);
+            tm.alphabetClass[c] = dfa.alphabet.stream().anyMatch(label -> label.contains(representative));
+        }
+        if (probe != null) probe.finish(PipelineStage.FROM_DFA, null);
+        return tm;
+    }
+
+    public boolean simulate(String input) {
+        if (!Instrumentation.simulationsObserved()) return run(input) >= 0;
+        SimulationEvent event = Instrumentation.beginSimulationEvent();
+        long start = System.nanoTime();
+        int outcome = run(input);
+        boolean accepted = outcome >= 0;
+        Instrumentation.simulationCompleted(this, event, input.length(), accepted ? outcome : ~outcome, System.nanoTime() - start, accepted);
+        return accepted;
+    }
+
+    /** Runs the machine; returns the number of steps taken if it accepts, else its complement. */
+    private int run(String input) {
+        if (dfa.startState == CompiledDFA.DEAD) {
+            // Only a DFA without states compiles to a dead start, and it accepts nothing.
+            System.err.println("TM start state is not initialized. Defaulting to reject. Input: \"" + input + "\"");
+            return ~0;
+        }
+
+        // The tape is never written, so it is read straight from the input. Each step
+        // moves the head one cell right until a halting rule, at the latest on the blank
+        // past the end; a step that halts counts too.
+        int state = dfa.startState;
+        for (int head = 0, tapeLength = input.length(); ; head++) {
+            char charUnderHead = head < tapeLength ? input.charAt(head) : BLANK_SYMBOL;
+            if (charUnderHead == BLANK_SYMBOL) return dfa.isAccepting(state) ? head + 1 : ~(head + 1);
+            int symbolClass = dfa.classMap.classOf(charUnderHead);
+            int next = dfa.next[state * dfa.classCount + symbolClass];
+            if (next == CompiledDFA.DEAD) {
+                return alphabetClass[symbolClass] ? ~(head + 1) : ~head; // reject sink, or no rule
+            }
+            state = next;
         }
-        return false; // Max steps reached
+    }
+
+    private static String stateName(int compiledState) {
+        return "q_dfa_" + (compiledState - 1);
     }
 
     @Override
     public String toString() {
+        // The listing splits the blank out of its DFA class, since it has rules of its own.
+        CharClassMap symbolClasses = dfa.classMap.withSingleton(BLANK_SYMBOL);
+        int blankClass = symbolClasses.classOf(BLANK_SYMBOL);
         StringBuilder sb = new StringBuilder("Turing Machine (simulating DFA):\n");
         sb.append("Tape Alphabet: ").append(tapeAlphabet).append("\n");
         sb.append("Blank Symbol: '").append(BLANK_SYMBOL).append("'\n");
-        sb.append("States: ").append(tmStates).append("\n");
-        sb.append("Start State: ").append(tmStartState).append("\n");
+        sb.append("States: ").append(Stream.concat(Stream.of(TM_ACCEPT_STATE, TM_REJECT_STATE),
+                        IntStream.range(1, dfa.stateCount).mapToObj(TuringMachine::stateName))
+                .collect(Collectors.joining(", ", "[", "]"))).append("\n");
+        sb.append("Start State: ").append(dfa.startState == CompiledDFA.DEAD ? null : stateName(dfa.startState)).append("\n");
         sb.append("Accept State: ").append(TM_ACCEPT_STATE).append("\n");
         sb.append("Reject State: ").append(TM_REJECT_STATE).append("\n");
         sb.append("Transitions:\n");
-        tmTransitions.forEach((fromState, transMap) ->
-                transMap.forEach((readSymbol, rule) ->
-                        sb.append("  (").append(fromState).append(", '").append(readSymbol).append("') -> ")
-                                .append(rule).append("\n")
-                )
-        );
+        for (int state = 1; state < dfa.stateCount; state++) {
+            for (int readClass = 0; readClass < symbolClasses.classCount; readClass++) {
+                TMRule rule;
+                String read = symbolClasses.describe(readClass);
+                if (readClass == blankClass) {
+                    rule = new TMRule(dfa.isAccepting(state) ? TM_ACCEPT_STATE : TM_REJECT_STATE, read, 'S');
+                } else {
+                    int dfaClass = dfa.classMap.classOf(symbolClasses.representative(readClass));
+                    int next = dfa.next[state * dfa.classCount + dfaClass];
+                    if (next != CompiledDFA.DEAD) rule = new TMRule(stateName(next), read, 'R');
+                    else if (alphabetClass[dfaClass]) rule = new TMRule(TM_REJECT_STATE, read, 'S');
+                    else continue;
+                }
+                sb.append("  (").append(stateName(state)).append(", '").append(read).append("') -> ")
+                        .append(rule).append("\n");
+            }
+        }
         return sb.toString();
     }
 }
 
-// --- Part 4: Main Class for Demonstration ---
+// --- Part 5: Compilation pipeline ---
+
+/**
+ * CompiledPattern bundles every stage compiled from one regex. All parts are
+ * treated as read-only once built, so a compiled pattern may be shared across threads.
+ */
+final class CompiledPattern {
+    final String regex;
+    final NFA nfa; // null when compiled with FOLLOWPOS
+    final DFA dfa; // minimized; null if the compile budget ran out
+    final TuringMachine tm; // null if the compile budget ran out
+    final CompiledDFA matcher; // null if the compile budget ran out
+    final NFASimulator fallback; // non-null exactly when the budget ran out
+    private volatile Searcher searcher; // built on first search
+
+    CompiledPattern(String regex, NFA nfa, DFA dfa, TuringMachine tm, CompiledDFA matcher) {
+        this.regex = regex;
+        this.nfa = nfa;
+        this.dfa = dfa;
+        this.tm = tm;
+        this.matcher = matcher;
+        this.fallback = null;
+    }
+
+    /** A pattern whose DFA was over budget; it matches by simulating the NFA. */
+    CompiledPattern(String regex, NFA nfa) {
+        this.regex = regex;
+        this.nfa = nfa;
+        this.dfa = null;
+        this.tm = null;
+        this.matcher = null;
+        this.fallback = new NFASimulator(nfa);
+    }
+
+    public boolean usesNfaFallback() {
+        return fallback != null;
+    }
+
+    public boolean matches(CharSequence input) {
+        return fallback == null ? matcher.matches(input) : fallback.matches(input);
+    }
+
+    /** The leftmost-longest match starting at or after from, or null. */
+    public Match find(CharSequence text, int from) {
+        return fallback == null ? searcher().find(text, from) : fallback.find(text, from);
+    }
+
+    public List<Match> findAll(CharSequence text) {
+        if (fallback == null) return searcher().findAll(text);
+        List<Match> matches = new ArrayList<>();
+        for (Match match = fallback.find(text, 0); match != null; ) {
+            matches.add(match);
+            int from = match.end > match.start ? match.end : match.end + 1;
+            match = from > text.length() ? null : fallback.find(text, from);
+        }
+        return matches;
+    }
+
+    /** Builds the searcher at most once per thread race; any copy built is equivalent. */
+    Searcher searcher() {
+        Searcher s = searcher;
+        if (s == null) searcher = s = new Searcher(nfa != null ? nfa : NFABuilder.buildFromRegex(regex), matcher);
+        return s;
+    }
+
+    /** Returns a matcher for many inputs at once, run on the common fork-join pool. */
+    public BatchMatcher batchMatcher() {
+        if (fallback != null) {
+            throw new IllegalStateException("Pattern exceeded its compile budget; batch matching needs a DFA: " + regex);
+        }
+        return new BatchMatcher(matcher);
+    }
+
+    /** Returns a new resumable matcher for feeding input in chunks. */
+    public StreamMatcher streamMatcher() {
+        if (fallback != null) {
+            throw new IllegalStateException("Pattern exceeded its compile budget; stream matching needs a DFA: " + regex);
+        }
+        return new StreamMatcher(matcher);
+    }
+}
+
+/**
+ * PatternCompiler runs the full regex -> NFA -> DFA -> minimized DFA -> TM pipeline.
+ * Every stage keeps its state ids and scratch space per compilation, so compile()
+ * is reentrant and compileAll() can spread a rule set across a fork-join pool.
+ */
+class PatternCompiler {
+    /** How the unminimized DFA is built from the regex. */
+    enum Construction {
+        /** Thompson NFA, then subset construction with epsilon closures. */
+        THOMPSON,
+        /** Directly from the syntax tree via followpos; no NFA is kept. */
+        FOLLOWPOS
+    }
+
+    public static CompiledPattern compile(String regex) {
+        return compile(regex, Construction.THOMPSON);
+    }
+
+    public static CompiledPattern compile(String regex, Construction construction) {
+        return compile(regex, construction, CompileBudget.UNLIMITED);
+    }
+
+    /**
+     * Compiles within the budget. If determinization runs over it, the partial DFA is
+     * dropped and the pattern falls back to NFA simulation (see usesNfaFallback()).
+     */
+    public static CompiledPattern compile(String regex, Construction construction, CompileBudget budget) {
+        if (!Instrumentation.stagesObserved()) return compileStages(regex, construction, budget);
+        Instrumentation.CURRENT_REGEX.set(regex); // lets every stage report which rule it belongs to
+        try {
+            return compileStages(regex, construction, budget);
+        } finally {
+            Instrumentation.CURRENT_REGEX.remove();
+        }
+    }
+
+    private static CompiledPattern compileStages(String regex, Construction construction, CompileBudget budget) {
+        NFA nfa = null;
+        DFA dfa;
+        try {
+            if (construction == Construction.FOLLOWPOS) {
+                dfa = DFAMinimizer.minimize(FollowposDFABuilder.build(regex, budget));
+            } else {
+                nfa = NFABuilder.buildFromRegex(regex);
+                dfa = DFAMinimizer.minimize(DFAConverter.convert(nfa, budget));
+            }
+        } catch (CompileBudgetExceededException e) {
+            return new CompiledPattern(regex, nfa != null ? nfa : NFABuilder.buildFromRegex(regex));
+        }
+        CompiledDFA compiled = dfa.compile();
+        return new CompiledPattern(regex, nfa, dfa, TuringMachine.fromDFA(dfa, compiled), compiled);
+    }
+
+    /** Compiles the patterns in parallel on the common fork-join pool, keeping their order. */
+    public static List<CompiledPattern> compileAll(List<String> regexes) {
+        return regexes.parallelStream().map(PatternCompiler::compile).collect(Collectors.toList());
+    }
+
+    /** Compiles the patterns in parallel on the given pool, keeping their order. */
+    public static List<CompiledPattern> compileAll(List<String> regexes, ForkJoinPool pool) {
+        return pool.submit(() -> compileAll(regexes)).join();
+    }
+}
+
+/**
+ * PatternCache holds compiled patterns keyed by regex, bounded by entry count and by
+ * estimated memory, and evicts in least-recently-used order. Concurrent requests for a
+ * regex that is not yet cached share one compilation. Hit, miss and eviction counters
+ * are exposed for sizing.
+ */
+class PatternCache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Function<String, CompiledPattern> compiler;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // access order
+    private final Map<String, CompletableFuture<CompiledPattern>> inFlight = new HashMap<>();
+    private long totalBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Entry {
+        final CompiledPattern pattern;
+        final long bytes;
+
+        Entry(CompiledPattern pattern, long bytes) {
+            this.pattern = pattern;
+            this.bytes = bytes;
+        }
+    }
+
+    public PatternCache(int maxEntries, long maxBytes) {
+        this(maxEntries, maxBytes, PatternCompiler::compile);
+    }
+
+    PatternCache(int maxEntries, long maxBytes, Function<String, CompiledPattern> compiler) {
+        if (maxEntries <= 0 || maxBytes <= 0) throw new IllegalArgumentException("Cache bounds must be positive");
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.compiler = compiler;
+    }
+
+    /** Returns the compiled pattern for the regex, compiling it at most once per miss. */
+    public CompiledPattern get(String regex) {
+        String key = normalize(regex);
+        CompletableFuture<CompiledPattern> pending;
+        boolean leader = false;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits.increment();
+                return entry.pattern;
+            }
+            misses.increment();
+            pending = inFlight.get(key);
+            if (pending == null) {
+                pending = new CompletableFuture<>();
+                inFlight.put(key, pending);
+                leader = true;
+            }
+        }
+        if (!leader) {
+            try {
+                return pending.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+
+        try {
+            CompiledPattern pattern = compiler.apply(key);
+            synchronized (this) {
+                inFlight.remove(key);
+                put(key, pattern);
+            }
+            pending.complete(pattern);
+            return pattern;
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                inFlight.remove(key);
+            }
+            pending.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /** Cache key for a regex: buildFromRegex treats null as the empty regex, so they share an entry. */
+    static String normalize(String regex) {
+        return regex == null ? "" : regex;
+    }
+
+    private void put(String key, CompiledPattern pattern) {
+        long bytes = estimateBytes(pattern);
+        Entry previous = entries.put(key, new Entry(pattern, bytes));
+        if (previous != null) totalBytes -= previous.bytes;
+        totalBytes += bytes;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && entries.size() > 1) { // never evict the new entry
+            Map.Entry<String, Entry> victim = eldest.next();
+            totalBytes -= victim.getValue().bytes;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /** Rough retained size: the compiled tables dominate, plus per-state object overhead. */
+    static long estimateBytes(CompiledPattern pattern) {
+        if (pattern.usesNfaFallback()) return 256 + 128L * pattern.nfa.stateCount + 48L * pattern.nfa.transitions.size();
+        CompiledDFA m = pattern.matcher;
+        long tables = 4L * m.next.length + 8L * m.accept.length;
+        long states = pattern.dfa.stateCount() + (pattern.nfa == null ? 0 : pattern.nfa.stateCount);
+        return 256 + 2 * tables + 128 * states + (pattern.nfa == null ? 0 : 48L * pattern.nfa.transitions.size());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int size() { return entries.size(); }
+    public synchronized long estimatedBytes() { return totalBytes; }
+    public long hitCount() { return hits.sum(); }
+    public long missCount() { return misses.sum(); }
+    public long evictionCount() { return evictions.sum(); }
+}
+
+/**
+ * MultiPattern matches an input against many regexes in one pass over a single DFA
+ * built from the union of their NFAs. Accept states carry the set of pattern ids they
+ * accept, deduplicated into a shared label table.
+ */
+final class MultiPattern {
+    private static final int[] NO_MATCH = new int[0];
+
+    final List<String> regexes;
+    final DFA dfa; // minimized
+    final CompiledDFA matcher;
+
+    MultiPattern(List<String> regexes, DFA dfa, CompiledDFA matcher) {
+        this.regexes = regexes;
+        this.dfa = dfa;
+        this.matcher = matcher;
+    }
+
+    /** Returns the ids (indexes into regexes) of every pattern the input matches, sorted. */
+    public int[] matchingPatterns(CharSequence input) {
+        int label = matcher.matchLabel(input);
+        return label < 0 ? NO_MATCH : matcher.labelTable[label].clone();
+    }
+
+    public boolean matchesAny(CharSequence input) {
+        return matcher.matches(input);
+    }
+}
+
+/**
+ * MultiPatternCompiler unions the NFAs of several regexes before subset construction,
+ * so matching costs one DFA pass instead of one pass per pattern.
+ */
+class MultiPatternCompiler {
+    public static MultiPattern compile(List<String> regexes) {
+        List<String> patterns = List.copyOf(regexes);
+        NFA union = NFABuilder.buildUnion(patterns);
+        DFA dfa = DFAMinimizer.minimize(DFAConverter.convert(union));
+        return new MultiPattern(patterns, dfa, dfa.compile());
+    }
+}
+
+/**
+ * PatternSet is a named, updatable set of regexes matched together. Each pattern keeps
+ * its own indexed NFA, whose states occupy a block of global state ids; the combined
+ * DFA over those ids is built lazily, as LazyDFA does, while inputs are matched.
+ *
+ * Every update publishes a new immutable Snapshot copy-on-write, so matchers already
+ * holding a snapshot finish on it undisturbed. Cached DFA states carry over into the
+ * new snapshot: adding a pattern only changes the start state (old states never reach
+ * the new pattern's ids), and removing one drops just the cached states that contain
+ * its ids. When removals leave the global ids sparse, the next snapshot renumbers them
+ * and starts with an empty cache.
+ */
+final class PatternSet {
+    private static final int DEFAULT_MAX_CACHED_STATES = 10_000;
+
+    /** One pattern in a snapshot: its id (stable across snapshots), NFA and first global state id. */
+    static final class Entry {
+        final String name;
+        final String regex;
+        final int id;
+        final NFA nfa;
+        final int base;
+
+        Entry(String name, String regex, int id, NFA nfa, int base) {
+            this.name = name;
+            this.regex = regex;
+            this.id = id;
+            this.nfa = nfa;
+            this.base = base;
+        }
+
+        Entry rebased(int newBase) {
+            return new Entry(name, regex, id, nfa, newBase);
+        }
+    }
+
+    /** A combined DFA state: a set of global NFA state ids and the patterns it accepts. */
+    static final class State {
+        final NFAStateSet nfaStates;
+        final int[] patterns; // sorted pattern ids
+        final State[] next;   // by snapshot class; null until first taken, written racily
+
+        State(NFAStateSet nfaStates, int[] patterns, int classCount) {
+            this.nfaStates = nfaStates;
+            this.patterns = patterns;
+            this.next = new State[classCount];
+        }
+    }
+
+    /** The cached states of one snapshot. Replaced wholesale when it outgrows its limit. */
+    static final class StateCache {
+        final Map<NFAStateSet, State> states = new ConcurrentHashMap<>();
+        final State dead;
+        volatile State start;
+
+        StateCache(int classCount) {
+            dead = new State(new NFAStateSet(new int[0], NFAStateSet.hashOf(new int[0], 0)), new int[0], classCount);
+            Arrays.fill(dead.next, dead);
+        }
+    }
+
+    /** One immutable version of the set. Matching on it is thread-safe. */
+    static final class Snapshot {
+        final long version;
+        final Map<String, Entry> entries;  // by name, in insertion order
+        final Entry[] ownerOfId;           // global state id -> entry, null for unused ids
+        final CharClassMap classMap;       // refines every pattern's class map
+        final int maxCachedStates;
+        final AtomicReference<StateCache> cache;
+        private final ThreadLocal<SubsetWorkspace> workspaces;
+
+        Snapshot(long version, Map<String, Entry> entries, int idLimit, CharClassMap classMap, int maxCachedStates, StateCache cache) {
+            this.version = version;
+            this.entries = Collections.unmodifiableMap(entries);
+            this.ownerOfId = new Entry[idLimit];
+            for (Entry e : entries.values()) Arrays.fill(ownerOfId, e.base, e.base + e.nfa.stateCount, e);
+            this.classMap = classMap;
+            this.maxCachedStates = maxCachedStates;
+            this.cache = new AtomicReference<>(cache);
+            this.workspaces = ThreadLocal.withInitial(() -> new SubsetWorkspace(idLimit));
+        }
+
+        /** Names of the patterns the whole input matches, in the order they were first added. */
+        public List<String> matchingPatterns(CharSequence input) {
+            int[] ids = run(input).patterns;
+            List<String> names = new ArrayList<>(ids.length);
+            for (Entry e : entries.values()) {
+                if (Arrays.binarySearch(ids, e.id) >= 0) names.add(e.name);
+            }
+            return names;
+        }
+
+        public boolean matchesAny(CharSequence input) {
+            return run(input).patterns.length > 0;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        private State run(CharSequence input) {
+            StateCache states = cache.get();
+            State state = start(states);
+            for (int i = 0, n = input.length(); i < n && state != states.dead; i++) {
+                int symbolClass = classMap.classOf(input.charAt(i));
+                State target = state.next[symbolClass];
+                if (target == null) state.next[symbolClass] = target = successor(states, state, symbolClass);
+                state = target;
+            }
+            return state;
+        }
+
+        private State start(StateCache states) {
+            State start = states.start;
+            if (start == null) {
+                SubsetWorkspace workspace = workspaces.get();
+                for (Entry e : entries.values()) workspace.add(e.base + e.nfa.startState);
+                states.start = start = intern(states, workspace);
+            }
+            return start;
+        }
+
+        private State successor(StateCache states, State from, int symbolClass) {
+            char c = classMap.representative(symbolClass); // every char of the class moves alike
+            SubsetWorkspace workspace = workspaces.get();
+            for (int id : from.nfaStates.states) {
+                Entry e = ownerOfId[id];
+                NFA nfa = e.nfa;
+                int key = (id - e.base) * nfa.classMap.classCount + nfa.classMap.classOf(c);
+                for (int i = nfa.symbolOffsets[key]; i < nfa.symbolOffsets[key + 1]; i++) {
+                    workspace.add(e.base + nfa.symbolTargets[i]);
+                }
+            }
+            return intern(states, workspace);
+        }
+
+        /** Closes the workspace over epsilon, then looks its set up or caches a new state. */
+        private State intern(StateCache states, SubsetWorkspace workspace) {
+            if (workspace.size == 0) return states.dead;
+            for (int next = 0; next < workspace.size; next++) {
+                int id = workspace.buffer[next];
+                Entry e = ownerOfId[id];
+                int local = id - e.base;
+                for (int i = e.nfa.epsilonOffsets[local]; i < e.nfa.epsilonOffsets[local + 1]; i++) {
+                    workspace.add(e.base + e.nfa.epsilonTargets[i]);
+                }
+            }
+            workspace.sort();
+            NFAStateSet set = workspace.toStateSet(workspace.hash());
+            workspace.clear();
+            State existing = states.states.get(set);
+            if (existing != null) return existing;
+            State state = new State(set, acceptedPatterns(set), classMap.classCount);
+            if (states.states.size() >= maxCachedStates) {
+                cache.compareAndSet(states, new StateCache(classMap.classCount)); // flush, as LazyDFA does
+                return state; // still valid; later matches start over in the new cache
+            }
+            existing = states.states.putIfAbsent(set, state);
+            return existing != null ? existing : state;
+        }
+
+        private int[] acceptedPatterns(NFAStateSet set) {
+            int[] ids = new int[4];
+            int n = 0;
+            for (int id : set.states) {
+                Entry e = ownerOfId[id];
+                if (id - e.base != e.nfa.acceptState) continue;
+                if (n == ids.length) ids = Arrays.copyOf(ids, 2 * n);
+                ids[n++] = e.id;
+            }
+            ids = Arrays.copyOf(ids, n);
+            Arrays.sort(ids);
+            return ids;
+        }
+    }
+
+    private final int maxCachedStates;
+    private volatile Snapshot current;
+    private int nextPatternId; // guarded by this
+
+    PatternSet() {
+        this(DEFAULT_MAX_CACHED_STATES);
+    }
+
+    PatternSet(int maxCachedStates) {
+        if (maxCachedStates <= 0) throw new IllegalArgumentException("maxCachedStates must be positive");
+        this.maxCachedStates = maxCachedStates;
+        CharClassMap noLabels = CharClassMap.fromLabels(Collections.emptyList());
+        this.current = new Snapshot(0, new LinkedHashMap<>(), 0, noLabels, maxCachedStates, new StateCache(noLabels.classCount));
+    }
+
+    /** The current version; hold on to it to match many inputs against one consistent set. */
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    public List<String> matchingPatterns(CharSequence input) {
+        return current.matchingPatterns(input);
+    }
+
+    /**
+     * Adds a pattern, or replaces the one with the same name in its original position.
+     * The regex is parsed before anything is published, so a bad regex leaves the set unchanged.
+     */
+    public void put(String name, String regex) {
+        NFA nfa = NFABuilder.buildFromRegex(regex);
+        synchronized (this) {
+            Snapshot old = current;
+            Map<String, Entry> entries = new LinkedHashMap<>(old.entries);
+            int idLimit = old.ownerOfId.length;
+            Entry replaced = entries.put(name, new Entry(name, regex, nextPatternId++, nfa, idLimit)); // keeps its position
+            publish(old, entries, idLimit + nfa.stateCount, old.classMap.refinedBy(nfa.alphabet), replaced);
+        }
+    }
+
+    /** Removes the named pattern; returns false if there was none. */
+    public synchronized boolean remove(String name) {
+        Snapshot old = current;
+        if (!old.entries.containsKey(name)) return false;
+        Map<String, Entry> entries = new LinkedHashMap<>(old.entries);
+        Entry removed = entries.remove(name);
+        publish(old, entries, old.ownerOfId.length, old.classMap, removed);
+        return true;
+    }
+
+    /** Builds and publishes the next snapshot, carrying over the cached states still valid. */
+    private void publish(Snapshot old, Map<String, Entry> entries, int idLimit, CharClassMap classMap, Entry removed) {
+        int liveStates = 0;
+        for (Entry e : entries.values()) liveStates += e.nfa.stateCount;
+        if (idLimit > 2 * liveStates + 1024) {
+            // Too many ids of removed patterns: renumber densely and start a fresh cache.
+            Map<String, Entry> compacted = new LinkedHashMap<>();
+            List<CharSet> labels = new ArrayList<>();
+            int base = 0;
+            for (Entry e : entries.values()) {
+                compacted.put(e.name, e.rebased(base));
+                base += e.nfa.stateCount;
+                labels.addAll(e.nfa.alphabet);
+            }
+            CharClassMap fresh = CharClassMap.fromLabels(Collections.emptyList()).refinedBy(labels);
+            current = new Snapshot(old.version + 1, compacted, base, fresh, maxCachedStates, new StateCache(fresh.classCount));
+            return;
+        }
+        StateCache migrated = new StateCache(classMap.classCount);
+        Map<State, State> carried = new IdentityHashMap<>();
+        carried.put(old.cache.get().dead, migrated.dead);
+        for (State state : old.cache.get().states.values()) {
+            if (removed != null && containsAny(state.nfaStates, removed.base, removed.base + removed.nfa.stateCount)) continue;
+            State copy = new State(state.nfaStates, state.patterns, classMap.classCount);
+            carried.put(state, copy);
+            migrated.states.put(copy.nfaStates, copy);
+        }
+        // Old class of each new class; the new map refines the old one.
+        int[] oldClassOf = new int[classMap.classCount];
+        for (int cls = 0; cls < classMap.classCount; cls++) oldClassOf[cls] = old.classMap.classOf(classMap.representative(cls));
+        carried.forEach((state, copy) -> {
+            if (copy == migrated.dead) return;
+            for (int cls = 0; cls < copy.next.length; cls++) {
+                State target = state.next[oldClassOf[cls]];
+                if (target != null) copy.next[cls] = carried.get(target); // null if dropped
+            }
+        });
+        current = new Snapshot(old.version + 1, entries, idLimit, classMap, maxCachedStates, migrated);
+    }
+
+    private static boolean containsAny(NFAStateSet set, int from, int to) {
+        int i = Arrays.binarySearch(set.states, from);
+        if (i < 0) i = -i - 1;
+        return i < set.states.length && set.states[i] < to;
+    }
+}
+
+// --- Part 6: Instrumentation ---
+
+/** The pipeline stages that report to Instrumentation. */
+enum PipelineStage {
+    BUILD_NFA, CONVERT, FOLLOWPOS, MINIMIZE, FROM_DFA
+}
+
+/**
+ * Statistics of one subset construction. For the followpos construction the "NFA"
+ * states are regex positions and no epsilon closures are computed.
+ */
+final class ConversionStats {
+    final int nfaStates;
+    final int dfaStates;
+    final int epsilonClosures;
+    final long transitions;
+
+    ConversionStats(int nfaStates, int dfaStates, int epsilonClosures, long transitions) {
+        this.nfaStates = nfaStates;
+        this.dfaStates = dfaStates;
+        this.epsilonClosures = epsilonClosures;
+        this.transitions = transitions;
+    }
+
+    public double transitionsPerState() {
+        return dfaStates == 0 ? 0 : (double) transitions / dfaStates;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d NFA states -> %d DFA states, %d epsilon closures, %.1f transitions/state",
+                nfaStates, dfaStates, epsilonClosures, transitionsPerState());
+    }
+}
+
+/**
+ * PipelineListener receives measurements from the compiler stages and from
+ * TuringMachine.simulate. Calls arrive on the thread doing the work, so
+ * implementations must be thread-safe and fast. Regex is null when a stage runs
+ * outside PatternCompiler and does not see the regex itself.
+ */
+interface PipelineListener {
+    /** allocatedBytes is -1 where the JVM cannot measure per-thread allocation. */
+    default void stageCompleted(PipelineStage stage, String regex, long nanos, long allocatedBytes) {
+    }
+
+    /** Follows stageCompleted for CONVERT and FOLLOWPOS. */
+    default void conversionCompleted(String regex, ConversionStats stats) {
+    }
+
+    default void simulationCompleted(TuringMachine tm, int inputLength, long steps, long nanos, boolean accepted) {
+    }
+}
+
+/** JFR event for one pipeline stage; conversion fields are zero for other stages. */
+@Name("regextm.PipelineStage")
+@Label("Regex Pipeline Stage")
+@Category("Regex")
+final class PipelineStageEvent extends Event {
+    @Label("Stage")
+    String stage;
+    @Label("Regex")
+    String regex;
+    @Label("Allocated")
+    @DataAmount
+    long allocatedBytes;
+    @Label("NFA States")
+    int nfaStates;
+    @Label("DFA States")
+    int dfaStates;
+    @Label("Epsilon Closures")
+    int epsilonClosures;
+    @Label("Transitions")
+    long transitions;
+}
+
+/** JFR event for one TuringMachine.simulate call. */
+@Name("regextm.Simulation")
+@Label("Turing Machine Simulation")
+@Category("Regex")
+final class SimulationEvent extends Event {
+    @Label("Input Length")
+    int inputLength;
+    @Label("Steps")
+    long steps;
+    @Label("Accepted")
+    boolean accepted;
+}
+
+/**
+ * Instrumentation routes pipeline measurements to the installed PipelineListener and
+ * to JFR. When no listener is installed and neither JFR event is enabled in a running
+ * recording, every instrumented call site costs a field read and a branch: no clock
+ * reads, no allocation measurement, no objects.
+ */
+final class Instrumentation {
+    static final ThreadLocal<String> CURRENT_REGEX = new ThreadLocal<>();
+
+    private static volatile PipelineListener listener;
+
+    // Looking up the event types or the MXBean loads hundreds of JFR and management
+    // classes, so both are deferred to holders that are only touched once a listener is
+    // installed or Flight Recorder is running.
+    private static final class EventTypes {
+        static final EventType STAGE = EventType.getEventType(PipelineStageEvent.class);
+        static final EventType SIMULATION = EventType.getEventType(SimulationEvent.class);
+    }
+
+    private static final class Threads {
+        static final ThreadMXBean BEAN = ManagementFactory.getThreadMXBean();
+    }
+
+    private Instrumentation() {
+    }
+
+    /** Installs the listener, replacing any previous one; null disables it. */
+    public static void setListener(PipelineListener newListener) {
+        listener = newListener;
+    }
+
+    static boolean stagesObserved() {
+        return listener != null || stageEventsEnabled();
+    }
+
+    static boolean simulationsObserved() {
+        return listener != null || simulationEventsEnabled();
+    }
+
+    private static boolean stageEventsEnabled() {
+        return FlightRecorder.isInitialized() && EventTypes.STAGE.isEnabled();
+    }
+
+    private static boolean simulationEventsEnabled() {
+        return FlightRecorder.isInitialized() && EventTypes.SIMULATION.isEnabled();
+    }
+
+    /** Starts timing a stage, or returns null when nothing is observing stages. */
+    static Probe startStage(String regex) {
+        return stagesObserved() ? new Probe(regex != null ? regex : CURRENT_REGEX.get()) : null;
+    }
+
+    /** A begun simulation event, or null when no recording has it enabled. */
+    static SimulationEvent beginSimulationEvent() {
+        if (!simulationEventsEnabled()) return null;
+        SimulationEvent event = new SimulationEvent();
+        event.begin();
+        return event;
+    }
+
+    static void simulationCompleted(TuringMachine tm, SimulationEvent event, int inputLength, long steps, long nanos, boolean accepted) {
+        PipelineListener current = listener;
+        if (current != null) current.simulationCompleted(tm, inputLength, steps, nanos, accepted);
+        if (event != null) {
+            event.end();
+            event.inputLength = inputLength;
+            event.steps = steps;
+            event.accepted = accepted;
+            event.commit();
+        }
+    }
+
+    /** Bytes allocated so far by the current thread, or -1 if the JVM cannot tell. */
+    static long allocatedBytes() {
+        if (Threads.BEAN instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) Threads.BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /** Wall time and allocation of one stage run. */
+    static final class Probe {
+        private final String regex;
+        private final PipelineStageEvent event;
+        private final long startAllocated;
+        private final long startNanos;
+
+        Probe(String regex) {
+            this.regex = regex;
+            this.event = stageEventsEnabled() ? new PipelineStageEvent() : null;
+            if (event != null) event.begin();
+            this.startAllocated = allocatedBytes();
+            this.startNanos = System.nanoTime();
+        }
+
+        void finish(PipelineStage stage, ConversionStats stats) {
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+            PipelineListener current = listener;
+            if (current != null) {
+                current.stageCompleted(stage, regex, nanos, allocated);
+                if (stats != null) current.conversionCompleted(regex, stats);
+            }
+            if (event != null) {
+                event.end();
+                event.stage = stage.name();
+                event.regex = regex;
+                event.allocatedBytes = allocated;
+                if (stats != null) {
+                    event.nfaStates = stats.nfaStates;
+                    event.dfaStates = stats.dfaStates;
+                    event.epsilonClosures = stats.epsilonClosures;
+                    event.transitions = stats.transitions;
+                }
+                event.commit();
+            }
+        }
+    }
+}
+
+// --- Part 7: Main Class for Demonstration ---
 public class RegexToDFAAndTM {
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
-        System.out.println("Enter a simplified regular expression (e.g., a*b, a|b, ab, a+c, d?e):");
+        System.out.println("Enter a simplified regular expression (e.g., a*b, a|b, ab, a+c, d?e, (ab)*c, [a-z]+\\d):");
         String regex = scanner.nextLine();
 
         System.out.println("\nBuilding NFA for regex: \"" + regex + "\"");
@@ -550,8 +3695,13 @@ public class RegexToDFAAndTM {
         DFA dfa = DFAConverter.convert(nfa);
         System.out.println(dfa);
 
+        System.out.println("\nMinimizing DFA...");
+        DFA minimizedDfa = DFAMinimizer.minimize(dfa);
+        System.out.println("DFA states: " + dfa.stateCount() + " before minimization, " + minimizedDfa.stateCount() + " after");
+        System.out.println(minimizedDfa);
+
         System.out.println("\nConverting DFA to Turing Machine representation...");
-        TuringMachine tm = TuringMachine.fromDFA(dfa);
+        TuringMachine tm = TuringMachine.fromDFA(minimizedDfa);
         System.out.println(tm);
 
         System.out.println("\nEnter a string to test with the Turing Machine (or type 'exit'):");
@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DFABundleTest {
+    private static final List<String> REGEXES = Arrays.asList("(a|b)*abb", "[0-9]+(\\.[0-9]+)?", "", "x?y*", "[α-ω]+λ", "a[^x]*x");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void encodedBundleMatchesLikeTheCompiledDFAs() {
+        List<CompiledDFA> compiled = compileAll(REGEXES);
+        List<MappedDFA> loaded = DFABundle.load(DFABundle.encode(compiled));
+        assertEquals(compiled.size(), loaded.size());
+        Random random = new Random(5);
+        for (int i = 0; i < 2000; i++) {
+            String input = randomInput(random);
+            for (int k = 0; k < compiled.size(); k++) {
+                assertEquals(compiled.get(k).matches(input), loaded.get(k).matches(input), REGEXES.get(k) + " on " + input);
+            }
+        }
+    }
+
+    @Test
+    void rewriteLeavesExistingMappingsIntact() throws IOException {
+        Path file = dir.resolve("rules.rxdf");
+        DFABundle.write(compileAll(Arrays.asList("abc", "[0-9]+")), file);
+        List<MappedDFA> before = DFABundle.map(file);
+
+        DFABundle.write(compileAll(Arrays.asList("x")), file);
+        assertTrue(before.get(0).matches("abc"));
+        assertTrue(before.get(1).matches("2024"));
+        List<MappedDFA> after = DFABundle.map(file);
+        assertEquals(1, after.size());
+        assertTrue(after.get(0).matches("x"));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(Arrays.asList(file), files.collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void rejectsCorruptHeaders() {
+        ByteBuffer valid = DFABundle.encode(compileAll(REGEXES));
+        assertRejected(valid, 0, 0x12345678, "Not a DFA bundle");
+        assertRejected(valid, 4, DFABundle.VERSION + 1, "Unsupported DFA bundle version");
+        assertRejected(valid, 8, 1 << 20, "bad entry count");
+        assertRejected(valid, 8, -1, "bad entry count");
+        assertThrows(IllegalArgumentException.class, () -> DFABundle.load(ByteBuffer.allocate(8)));
+    }
+
+    @Test
+    void rejectsEntriesWithBadOffsetsOrSizes() {
+        ByteBuffer valid = DFABundle.encode(compileAll(REGEXES));
+        int entry = (int) valid.duplicate().order(ByteOrder.LITTLE_ENDIAN).getLong(DFABundle.HEADER_BYTES);
+
+        ByteBuffer offset = copy(valid);
+        offset.putLong(DFABundle.HEADER_BYTES, valid.limit());
+        assertMessage(offset, "out of bounds");
+        assertRejected(valid, entry, 0, "inconsistent sizes");                  // classCount
+        assertRejected(valid, entry + 4, Integer.MAX_VALUE, "inconsistent sizes"); // stateCount
+        assertRejected(valid, entry + 8, -1, "inconsistent sizes");             // startState
+        assertRejected(valid, entry + 12, 0, "inconsistent sizes");             // intervals
+
+        ByteBuffer truncated = copy(valid);
+        truncated.limit(valid.limit() - 8);
+        assertMessage(truncated, "inconsistent sizes");
+    }
+
+    @Test
+    void refusesMultiPatternLabels() {
+        CompiledDFA union = MultiPatternCompiler.compile(Arrays.asList("a", "b")).matcher;
+        assertThrows(IllegalArgumentException.class, () -> DFABundle.encode(Arrays.asList(union)));
+    }
+
+    private static List<CompiledDFA> compileAll(List<String> regexes) {
+        List<CompiledDFA> compiled = new ArrayList<>();
+        for (String regex : regexes) compiled.add(PatternCompiler.compile(regex).matcher);
+        return compiled;
+    }
+
+    private static String randomInput(Random random) {
+        String symbols = "abxy0129.αβλω";
+        StringBuilder sb = new StringBuilder();
+        for (int k = random.nextInt(8); k > 0; k--) sb.append(symbols.charAt(random.nextInt(symbols.length())));
+        return sb.toString();
+    }
+
+    private static ByteBuffer copy(ByteBuffer bundle) {
+        ByteBuffer copy = ByteBuffer.allocate(bundle.limit()).order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(bundle.duplicate()).clear();
+        return copy;
+    }
+
+    private static void assertRejected(ByteBuffer valid, int position, int value, String message) {
+        ByteBuffer corrupt = copy(valid);
+        corrupt.putInt(position, value);
+        assertMessage(corrupt, message);
+    }
+
+    private static void assertMessage(ByteBuffer corrupt, String message) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> DFABundle.load(corrupt));
+        assertTrue(e.getMessage().contains(message), e.getMessage());
+    }
+}
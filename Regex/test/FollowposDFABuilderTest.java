@@ -0,0 +1,46 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class FollowposDFABuilderTest {
+    private static final String[] RULES = {
+        "", "a", "a*", "(a|b)*abb", "a|", "(ab)*c", "[a-z]+\\d", "((a|b)*c?)+d", "x?y?z?", "(a*)*",
+        "(|a)b", "a+b+|c*", ".\\w\\s[^a-c]", "(a|b)*a(a|b)(a|b)(a|b)(a|b)(a|b)",
+    };
+
+    @Test
+    void agreesWithThompsonOnFixedRules() {
+        for (String regex : RULES) assertSameMinimalDFA(regex);
+    }
+
+    @Test
+    void agreesWithThompsonOnRandomRegexes() {
+        Random random = new Random(3);
+        for (int i = 0; i < 2000; i++) assertSameMinimalDFA(randomRegex(random, 4));
+    }
+
+    /** Both constructions minimize to the same DFA: same language and same state count. */
+    private static void assertSameMinimalDFA(String regex) {
+        CompiledPattern thompson = PatternCompiler.compile(regex, PatternCompiler.Construction.THOMPSON);
+        CompiledPattern followpos = PatternCompiler.compile(regex, PatternCompiler.Construction.FOLLOWPOS);
+        assertTrue(CompiledDFA.equivalent(thompson.matcher, followpos.matcher), regex);
+        assertEquals(thompson.dfa.stateCount(), followpos.dfa.stateCount(), regex);
+    }
+
+    private static String randomRegex(Random random, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            String[] atoms = {"a", "b", "c", "[ab]", "."};
+            return atoms[random.nextInt(atoms.length)];
+        }
+        switch (random.nextInt(6)) {
+            case 0: return randomRegex(random, depth - 1) + randomRegex(random, depth - 1);
+            case 1: return "(" + randomRegex(random, depth - 1) + "|" + randomRegex(random, depth - 1) + ")";
+            case 2: return "(" + randomRegex(random, depth - 1) + ")*";
+            case 3: return "(" + randomRegex(random, depth - 1) + ")+";
+            case 4: return "(" + randomRegex(random, depth - 1) + ")?";
+            default: return "(" + randomRegex(random, depth - 1) + "|)";
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class LazyDFATest {
+
+    @Test
+    void startStateSurvivesCacheFlush() {
+        LazyDFA lazy = new LazyDFA(NFABuilder.buildFromRegex("ab"), 1);
+        assertFalse(lazy.matches(""));
+        assertTrue(lazy.matches("ab"));
+        assertTrue(lazy.cacheFlushes() > 0);
+        assertFalse(lazy.matches(""));
+        assertFalse(lazy.matches("b"));
+        assertTrue(lazy.matches("ab"));
+    }
+
+    @Test
+    void matchesAfterFlushesAgreeWithJavaRegex() {
+        String regex = "(a|b)*a(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)(a|b)c";
+        LazyDFA lazy = new LazyDFA(NFABuilder.buildFromRegex(regex), 64 << 10);
+        Pattern expected = Pattern.compile(regex);
+        Random random = new Random(7);
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 5000; i++) input.append(random.nextBoolean() ? 'a' : 'b');
+        assertFalse(lazy.matches(input));
+        assertTrue(lazy.cacheFlushes() > 0);
+
+        for (String probe : new String[] {"", "c", "bc", "a" + "b".repeat(14) + "c", "ab".repeat(20) + "c"}) {
+            assertEquals(expected.matcher(probe).matches(), lazy.matches(probe), probe);
+        }
+        for (int i = 0; i < 500; i++) {
+            StringBuilder probe = new StringBuilder();
+            for (int k = random.nextInt(40); k > 0; k--) probe.append("abc".charAt(random.nextInt(3)));
+            assertEquals(expected.matcher(probe).matches(), lazy.matches(probe), probe.toString());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+class MultiPatternTest {
+
+    @Test
+    void emptyPatternListMatchesNothing() {
+        MultiPattern patterns = MultiPatternCompiler.compile(Collections.emptyList());
+        assertArrayEquals(new int[0], patterns.matchingPatterns(""));
+        assertArrayEquals(new int[0], patterns.matchingPatterns("abc"));
+        assertFalse(patterns.matchesAny(""));
+    }
+
+    @Test
+    void reportsEveryMatchingPatternInIdOrder() {
+        MultiPattern patterns = MultiPatternCompiler.compile(Arrays.asList("a+", "ab*", "b", "(a|b)*"));
+        assertArrayEquals(new int[] {0, 1, 3}, patterns.matchingPatterns("a"));
+        assertArrayEquals(new int[] {1, 3}, patterns.matchingPatterns("abb"));
+        assertArrayEquals(new int[] {3}, patterns.matchingPatterns(""));
+        assertArrayEquals(new int[0], patterns.matchingPatterns("c"));
+    }
+}
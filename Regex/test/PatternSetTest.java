@@ -0,0 +1,118 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class PatternSetTest {
+    private static final String SYMBOLS = "abcdxyz01";
+
+    @Test
+    void randomUpdatesAgreeWithEachPatternAlone() {
+        Random random = new Random(4);
+        PatternSet set = new PatternSet(500);
+        Map<String, CompiledPattern> reference = new LinkedHashMap<>();
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) inputs.add(randomInput(random));
+        for (int step = 0; step < 400; step++) {
+            String name = "r" + random.nextInt(30);
+            if (random.nextInt(3) < 2) {
+                // Atoms over a growing alphabet, so most puts refine the class map of cached states.
+                String regex = randomRegex(random, 3, SYMBOLS.substring(0, 2 + Math.min(step / 40, SYMBOLS.length() - 2)));
+                set.put(name, regex);
+                reference.put(name, PatternCompiler.compile(regex));
+            } else {
+                assertEquals(reference.remove(name) != null, set.remove(name), "remove " + name);
+            }
+            PatternSet.Snapshot snapshot = set.snapshot();
+            assertEquals(new ArrayList<>(reference.keySet()), new ArrayList<>(snapshot.entries.keySet()));
+            for (String input : inputs) {
+                List<String> expected = new ArrayList<>();
+                reference.forEach((n, pattern) -> {
+                    if (pattern.matches(input)) expected.add(n);
+                });
+                assertEquals(expected, snapshot.matchingPatterns(input), "step " + step + " on '" + input + "'");
+            }
+        }
+    }
+
+    @Test
+    void replacedPatternKeepsItsPosition() {
+        PatternSet set = new PatternSet();
+        set.put("first", "a*");
+        set.put("second", "a");
+        set.put("third", "a+");
+        set.put("first", "a?");
+        assertEquals(Arrays.asList("first", "second", "third"), set.matchingPatterns("a"));
+        assertEquals(Arrays.asList("first"), set.matchingPatterns(""));
+    }
+
+    @Test
+    void removalDropsOnlyTheCachedStatesOfThatPattern() {
+        PatternSet set = new PatternSet();
+        set.put("p", "ab*");
+        set.put("q", "a[0-9]");
+        assertEquals(Arrays.asList("p"), set.matchingPatterns("abbb"));
+        assertEquals(Arrays.asList("q"), set.matchingPatterns("a1"));
+
+        assertTrue(set.remove("q"));
+        PatternSet.Snapshot snapshot = set.snapshot();
+        assertFalse(snapshot.cache.get().states.isEmpty());
+        for (PatternSet.State state : snapshot.cache.get().states.values()) {
+            for (int id : state.nfaStates.states) assertNotNull(snapshot.ownerOfId[id], "state of a removed pattern kept");
+        }
+        assertEquals(Arrays.asList("p"), set.matchingPatterns("abbb"));
+        assertEquals(Arrays.asList(), set.matchingPatterns("a1"));
+        assertFalse(set.remove("q"));
+    }
+
+    @Test
+    void repeatedReplacementsCompactTheStateIds() {
+        PatternSet set = new PatternSet();
+        set.put("small", "x[0-9]+");
+        String big = "a".repeat(300);
+        for (int i = 0; i < 50; i++) {
+            set.put("big", big + i);
+            assertEquals(Arrays.asList("big"), set.matchingPatterns(big + i));
+            assertEquals(Arrays.asList("small"), set.matchingPatterns("x42"));
+        }
+        PatternSet.Snapshot snapshot = set.snapshot();
+        int live = 0;
+        for (PatternSet.Entry e : snapshot.entries.values()) live += e.nfa.stateCount;
+        assertTrue(snapshot.ownerOfId.length <= 2 * live + 1024 + snapshot.entries.get("big").nfa.stateCount,
+                snapshot.ownerOfId.length + " ids for " + live + " live states");
+        assertEquals(Arrays.asList("small", "big"), new ArrayList<>(snapshot.entries.keySet()));
+    }
+
+    private static String randomInput(Random random) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = random.nextInt(10); k > 0; k--) sb.append(SYMBOLS.charAt(random.nextInt(SYMBOLS.length())));
+        return sb.toString();
+    }
+
+    private static String randomRegex(Random random, int depth, String alphabet) {
+        if (depth == 0 || random.nextInt(4) == 0) {
+            char c = alphabet.charAt(random.nextInt(alphabet.length()));
+            char other = alphabet.charAt(random.nextInt(alphabet.length()));
+            switch (random.nextInt(4)) {
+                case 0: return "[" + (char) Math.min(c, other) + "-" + (char) Math.max(c, other) + "]";
+                case 1: return "[^" + c + "]";
+                default: return String.valueOf(c);
+            }
+        }
+        switch (random.nextInt(5)) {
+            case 0: return randomRegex(random, depth - 1, alphabet) + randomRegex(random, depth - 1, alphabet);
+            case 1: return "(" + randomRegex(random, depth - 1, alphabet) + "|" + randomRegex(random, depth - 1, alphabet) + ")";
+            case 2: return "(" + randomRegex(random, depth - 1, alphabet) + ")*";
+            case 3: return "(" + randomRegex(random, depth - 1, alphabet) + ")+";
+            default: return "(" + randomRegex(random, depth - 1, alphabet) + ")?";
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class SearcherTest {
+
+    @Test
+    void prefixedSearchFindsLeftmostLongestPastFailedCandidates() {
+        CompiledPattern pattern = PatternCompiler.compile("ab(c|d)*e");
+        assertEquals("ab", pattern.searcher().prefix);
+        assertEquals("[[4, 9)]", pattern.findAll("abcdabcdeabab_e").toString());
+
+        Random random = new Random(3);
+        for (String regex : new String[] {"ab(c|d)*e", "a[^x]*x", "abc|abd", "ab*", "a|a*b", "a|(aa)*b", "(a|b)*c|a"}) {
+            CompiledPattern compiled = PatternCompiler.compile(regex);
+            for (int i = 0; i < 200; i++) {
+                StringBuilder text = new StringBuilder();
+                for (int k = random.nextInt(30); k > 0; k--) text.append("abcdex".charAt(random.nextInt(6)));
+                assertEquals(bruteForceFindAll(compiled, text.toString()).toString(),
+                        compiled.findAll(text).toString(), regex + " on " + text);
+            }
+        }
+    }
+
+    @Test
+    void prefixedSearchIsLinearWhenCandidatesFail() {
+        CompiledPattern pattern = PatternCompiler.compile("a[^x]*x");
+        String text = "a".repeat(1_000_000);
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertTrue(pattern.findAll(text).isEmpty()));
+    }
+
+    @Test
+    void findAllIsLinearWhenScansRunPastTheirMatches() {
+        // Each 'a' is a match of its own, but every scan could still extend to a*b.
+        String text = "a".repeat(200_000);
+        for (String regex : new String[] {"a|a*b", "a|(aa)*b"}) {
+            CompiledPattern pattern = PatternCompiler.compile(regex);
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertEquals(text.length(), pattern.findAll(text).size()), regex);
+        }
+    }
+
+    /** Tries every start in turn, keeping the longest match from the first start that has one. */
+    private static List<Match> bruteForceFindAll(CompiledPattern pattern, String text) {
+        List<Match> matches = new ArrayList<>();
+        for (int from = 0; from <= text.length(); ) {
+            Match match = null;
+            for (int start = from; start <= text.length() && match == null; start++) {
+                for (int end = text.length(); end >= start; end--) {
+                    if (pattern.matches(text.substring(start, end))) {
+                        match = new Match(start, end);
+                        break;
+                    }
+                }
+            }
+            if (match == null) break;
+            matches.add(match);
+            from = match.end > match.start ? match.end : match.end + 1;
+        }
+        return matches;
+    }
+}
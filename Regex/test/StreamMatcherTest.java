@@ -0,0 +1,104 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StreamMatcherTest {
+    private static final int[][] MALFORMED = {
+        {0xC0, 0x80}, {0xC1, 0xBF}, {0xE0, 0x80, 0x80}, {0xE0, 0x9F, 0xBF}, {0xED, 0xA0, 0x80},
+        {0xF0, 0x80, 0x80, 0x80}, {0xF4, 0x90, 0x80, 0x80}, {0xF5, 0x80}, {0xF8, 0x88, 0x80, 0x80, 0x80},
+        {0xFF}, {0x80}, {0xE2, 0x82}, {0xE2, 0x82, 0x41}, {0xF0, 0x9F, 0x98}, {0xF0, 0x9F, 0x41, 0x80},
+        {0xED, 0xA0, 0x41}, {0xED, 0xBF},
+        {0xE2, 0x82, 0xAC}, {0xF0, 0x9F, 0x98, 0x80}, {0xED, 0x9F, 0xBF}, {0xF4, 0x8F, 0xBF, 0xBF},
+    };
+
+    /** Bytes that exercise every branch of the decoder: ASCII, continuations, each lead-byte range. */
+    private static final int[] POOL = {0x41, 0x7F, 0x80, 0x8F, 0x90, 0x9F, 0xA0, 0xBF, 0xC0, 0xC2, 0xDF,
+        0xE0, 0xE2, 0xED, 0xEF, 0xF0, 0xF3, 0xF4, 0xF5, 0xFF};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void utf8ReplacementsMatchTheJdkDecoder() {
+        for (int[] sequence : MALFORMED) {
+            byte[] bytes = toBytes(sequence);
+            assertDecodesLikeString(bytes);
+            byte[] framed = new byte[bytes.length + 2];
+            framed[0] = 'x';
+            System.arraycopy(bytes, 0, framed, 1, bytes.length);
+            framed[framed.length - 1] = 'y';
+            assertDecodesLikeString(framed);
+        }
+        Random random = new Random(13);
+        for (int i = 0; i < 2000; i++) {
+            byte[] bytes = new byte[random.nextInt(12)];
+            for (int k = 0; k < bytes.length; k++) bytes[k] = (byte) POOL[random.nextInt(POOL.length)];
+            assertDecodesLikeString(bytes);
+        }
+    }
+
+    @Test
+    void mappedFilesDecodeLikeStrings() throws IOException {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) i;
+        Path file = Files.write(dir.resolve("bytes.bin"), bytes);
+        for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII}) {
+            CompiledDFA dfa = literal(new String(bytes, charset));
+            assertTrue(StreamMatcher.matches(dfa, file, charset), charset.name());
+        }
+        assertFalse(StreamMatcher.matches(literal(new String(bytes, StandardCharsets.ISO_8859_1)), file, StandardCharsets.US_ASCII));
+    }
+
+    /** Feeds the bytes whole, split at every position, and one byte per chunk. */
+    private static void assertDecodesLikeString(byte[] bytes) {
+        String expected = new String(bytes, StandardCharsets.UTF_8);
+        CompiledDFA dfa = literal(expected);
+        String description = hex(bytes) + " decoded as " + hex(expected);
+        for (int split = 0; split <= bytes.length; split++) {
+            StreamMatcher matcher = new StreamMatcher(dfa);
+            matcher.feedUtf8(ByteBuffer.wrap(bytes, 0, split));
+            matcher.feedUtf8(ByteBuffer.wrap(bytes, split, bytes.length - split));
+            assertTrue(matcher.finish(), description + ", split at " + split);
+        }
+        StreamMatcher matcher = new StreamMatcher(dfa);
+        for (byte b : bytes) matcher.feedUtf8(ByteBuffer.wrap(new byte[] {b}));
+        assertTrue(matcher.finish(), description + ", byte by byte");
+    }
+
+    /** A DFA accepting exactly the given string. */
+    private static CompiledDFA literal(String text) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : text.toCharArray()) {
+            if (!Character.isLetterOrDigit(c)) regex.append('\\');
+            regex.append(c);
+        }
+        return PatternCompiler.compile(regex.toString()).matcher;
+    }
+
+    private static byte[] toBytes(int[] values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) bytes[i] = (byte) values[i];
+        return bytes;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) sb.append(String.format("%02X ", b & 0xFF));
+        return sb.toString().trim();
+    }
+
+    private static String hex(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : text.toCharArray()) sb.append(String.format("U+%04X ", (int) c));
+        return sb.toString().trim();
+    }
+}
@@ -0,0 +1,47 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class TuringMachineTest {
+
+    @Test
+    void decidesTheSameLanguageAsTheRegex() {
+        for (String regex : new String[] {"", "a", "(a|b)*abb", "[0-9]+(\\.[0-9]+)?", "x?y*"}) {
+            TuringMachine tm = PatternCompiler.compile(regex).tm;
+            Pattern expected = Pattern.compile(regex);
+            for (String input : new String[] {"", "a", "abb", "babb", "12", "1.5", "1.", "y", "xyy"}) {
+                assertEquals(expected.matcher(input).matches(), tm.simulate(input), regex + " on " + input);
+            }
+        }
+    }
+
+    @Test
+    void listingWritesBackTheClassThatWasRead() {
+        String listing = PatternCompiler.compile("[a-z]x").tm.toString();
+        assertTrue(listing.contains("(q_dfa_0, '[a-wy-z]') -> (to_state=q_dfa_1, write=[a-wy-z], move=R)"), listing);
+        assertTrue(listing.contains("(q_dfa_0, 'x') -> (to_state=q_dfa_1, write=x, move=R)"), listing);
+    }
+
+    @Test
+    void haltsOneStepAfterTheInput() {
+        long[] steps = new long[1];
+        Instrumentation.setListener(new PipelineListener() {
+            @Override
+            public void simulationCompleted(TuringMachine tm, int inputLength, long taken, long nanos, boolean accepted) {
+                steps[0] = taken;
+            }
+        });
+        try {
+            TuringMachine tm = PatternCompiler.compile("(a|b)*abb").tm;
+            assertTrue(tm.simulate("aabb"));
+            assertEquals(5, steps[0]);
+            assertFalse(tm.simulate("abc"));
+            assertEquals(2, steps[0]); // 'c' is outside the alphabet: no rule, so it halts there
+        } finally {
+            Instrumentation.setListener(null);
+        }
+    }
+}
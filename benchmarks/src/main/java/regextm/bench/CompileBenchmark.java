@@ -0,0 +1,77 @@
+package regextm.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each compile stage on its own, fed the previous stage's output built in setup, plus
+ * the two ways from a regex to an unminimized DFA side by side: thompson (buildFromRegex
+ * then convert) and followpos (the direct construction). Run with -prof gc for
+ * allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompileBenchmark {
+    @Param({"NESTED_STARS", "LONG_ALTERNATION", "EXPONENTIAL"})
+    RegexFamily family;
+
+    @Param({"4", "8", "12"})
+    int n;
+
+    String regex;
+    Object nfa;
+    Object dfa;
+    Object minimizedDfa;
+
+    @Setup
+    public void setUp() throws Throwable {
+        regex = family.regex(n);
+        nfa = Pipeline.buildFromRegex(regex);
+        dfa = Pipeline.convert(nfa);
+        minimizedDfa = Pipeline.minimize(dfa);
+    }
+
+    @Benchmark
+    public Object buildFromRegex() throws Throwable {
+        return Pipeline.buildFromRegex(regex);
+    }
+
+    @Benchmark
+    public Object convert() throws Throwable {
+        return Pipeline.convert(nfa);
+    }
+
+    @Benchmark
+    public Object thompson() throws Throwable {
+        return Pipeline.convert(Pipeline.buildFromRegex(regex));
+    }
+
+    @Benchmark
+    public Object followpos() throws Throwable {
+        return Pipeline.followpos(regex);
+    }
+
+    @Benchmark
+    public Object minimize() throws Throwable {
+        return Pipeline.minimize(dfa);
+    }
+
+    @Benchmark
+    public Object fromDFA() throws Throwable {
+        return Pipeline.fromDFA(minimizedDfa);
+    }
+}
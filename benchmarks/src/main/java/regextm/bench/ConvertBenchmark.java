@@ -0,0 +1,47 @@
+package regextm.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Subset construction at the sizes it was tuned for: EXPONENTIAL with n = 17 converts
+ * to 2^17 = 131,072 DFA states. Each conversion takes long enough to time on its own,
+ * so this runs single-shot rather than at CompileBenchmark's small sizes. For a
+ * before/after comparison, build the module against the older Regex sources and run
+ * the same benchmark. Run with -prof gc for allocation per conversion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ConvertBenchmark {
+    @Param({"EXPONENTIAL"})
+    RegexFamily family;
+
+    @Param({"14", "17"})
+    int n;
+
+    Object nfa;
+
+    @Setup
+    public void setUp() throws Throwable {
+        nfa = Pipeline.buildFromRegex(family.regex(n));
+    }
+
+    @Benchmark
+    public Object convert() throws Throwable {
+        return Pipeline.convert(nfa);
+    }
+}
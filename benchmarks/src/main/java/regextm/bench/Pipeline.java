@@ -0,0 +1,78 @@
+package regextm.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * Pipeline exposes the compiler stages to the benchmarks. The compiler's classes live in
+ * the default package, which named packages cannot import and JMH will not generate
+ * benchmarks in, so each stage is bound once to a static final MethodHandle. The JIT
+ * treats those as constants and inlines straight through them.
+ * Automata are passed around as Object.
+ */
+final class Pipeline {
+    private static final MethodHandle BUILD_FROM_REGEX = bind("NFABuilder", "buildFromRegex", String.class);
+    private static final MethodHandle CONVERT = bind("DFAConverter", "convert", type("NFA"));
+    private static final MethodHandle FOLLOWPOS = bind("FollowposDFABuilder", "build", String.class);
+    private static final MethodHandle MINIMIZE = bind("DFAMinimizer", "minimize", type("DFA"));
+    private static final MethodHandle FROM_DFA = bind("TuringMachine", "fromDFA", type("DFA"));
+    private static final MethodHandle SIMULATE = bind("TuringMachine", "simulate", String.class);
+    private static final MethodHandle COMPILE = bind("DFA", "compile");
+    private static final MethodHandle MATCHES = bind("CompiledDFA", "matches", CharSequence.class);
+
+    private Pipeline() {
+    }
+
+    static Object buildFromRegex(String regex) throws Throwable {
+        return (Object) BUILD_FROM_REGEX.invokeExact((Object) regex);
+    }
+
+    static Object convert(Object nfa) throws Throwable {
+        return (Object) CONVERT.invokeExact(nfa);
+    }
+
+    static Object followpos(String regex) throws Throwable {
+        return (Object) FOLLOWPOS.invokeExact((Object) regex);
+    }
+
+    static Object minimize(Object dfa) throws Throwable {
+        return (Object) MINIMIZE.invokeExact(dfa);
+    }
+
+    static Object fromDFA(Object dfa) throws Throwable {
+        return (Object) FROM_DFA.invokeExact(dfa);
+    }
+
+    static boolean simulate(Object tm, String input) throws Throwable {
+        return (boolean) SIMULATE.invokeExact(tm, (Object) input);
+    }
+
+    static Object compile(Object dfa) throws Throwable {
+        return (Object) COMPILE.invokeExact(dfa);
+    }
+
+    static boolean matches(Object compiledDfa, String input) throws Throwable {
+        return (boolean) MATCHES.invokeExact(compiledDfa, (Object) input);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Compiler class " + name + " is not on the classpath", e);
+        }
+    }
+
+    /** Binds a method, static or not, with every reference type erased to Object. */
+    private static MethodHandle bind(String owner, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type(owner).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true); // the owner class is package-private
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot bind " + owner + "." + name, e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package regextm.bench;
+
+import java.util.Random;
+
+/**
+ * Parameterized regex families that stress different parts of the pipeline. Each one
+ * grows with n and can generate inputs of any length that the regex accepts, so
+ * simulate() always runs to the end of its input.
+ */
+public enum RegexFamily {
+    /** ((ab*)*c*)*... : n nested stars, dense in epsilon transitions. */
+    NESTED_STARS {
+        @Override
+        String regex(int n) {
+            String regex = "a";
+            for (int i = 1; i <= n; i++) regex = "(" + regex + letter(i) + "*)*";
+            return regex;
+        }
+
+        @Override
+        String input(int n, int length, Random random) {
+            StringBuilder input = new StringBuilder(length);
+            for (int i = 0; i < length; i++) input.append(letter(random.nextInt(n + 1)));
+            return input.toString();
+        }
+    },
+
+    /** (w0|w1|...)+ over 4 * n * n distinct words: a wide, shallow NFA. */
+    LONG_ALTERNATION {
+        @Override
+        String regex(int n) {
+            StringBuilder regex = new StringBuilder("(");
+            String[] words = words(n);
+            for (int i = 0; i < words.length; i++) regex.append(i == 0 ? "" : "|").append(words[i]);
+            return regex.append(")+").toString();
+        }
+
+        @Override
+        String input(int n, int length, Random random) {
+            String[] words = words(n);
+            StringBuilder input = new StringBuilder(length + 16);
+            while (input.length() < length) input.append(words[random.nextInt(words.length)]);
+            return input.toString();
+        }
+    },
+
+    /** (a|b)*a(a|b)^(n-1) : the minimal DFA has 2^n states. */
+    EXPONENTIAL {
+        @Override
+        String regex(int n) {
+            StringBuilder regex = new StringBuilder("(a|b)*a");
+            for (int i = 1; i < n; i++) regex.append("(a|b)");
+            return regex.toString();
+        }
+
+        @Override
+        String input(int n, int length, Random random) {
+            StringBuilder input = new StringBuilder(length);
+            for (int i = 0; i < length; i++) input.append(i == length - n ? 'a' : (char) ('a' + random.nextInt(2)));
+            return input.toString();
+        }
+    };
+
+    abstract String regex(int n);
+
+    /** An accepted input of at least the given length. */
+    abstract String input(int n, int length, Random random);
+
+    private static char letter(int i) {
+        return (char) ('a' + i % 26);
+    }
+
+    private static String[] words(int n) {
+        Random random = new Random(n);
+        String[] words = new String[4 * n * n];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(6);
+            for (int k = 0; k < length; k++) word.append(letter(random.nextInt(26)));
+            words[i] = word.append(i).toString(); // distinct
+        }
+        return words;
+    }
+}
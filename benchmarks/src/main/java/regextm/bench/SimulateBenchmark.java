@@ -0,0 +1,61 @@
+package regextm.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching an accepted input of a given length, through the TuringMachine and
+ * through the CompiledDFA table for comparison. Run with -prof gc for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulateBenchmark {
+    @Param({"NESTED_STARS", "LONG_ALTERNATION", "EXPONENTIAL"})
+    RegexFamily family;
+
+    @Param({"8"})
+    int n;
+
+    @Param({"16", "1024", "65536"})
+    int inputLength;
+
+    String input;
+    Object tm;
+    Object compiledDfa;
+
+    @Setup
+    public void setUp() throws Throwable {
+        Object dfa = Pipeline.minimize(Pipeline.convert(Pipeline.buildFromRegex(family.regex(n))));
+        tm = Pipeline.fromDFA(dfa);
+        compiledDfa = Pipeline.compile(dfa);
+        input = family.input(n, inputLength, new Random(42));
+        if (!Pipeline.simulate(tm, input)) {
+            throw new IllegalStateException(family + " input is not accepted; the benchmark would stop early");
+        }
+    }
+
+    @Benchmark
+    public boolean simulate() throws Throwable {
+        return Pipeline.simulate(tm, input);
+    }
+
+    @Benchmark
+    public boolean compiledMatch() throws Throwable {
+        return Pipeline.matches(compiledDfa, input);
+    }
+}